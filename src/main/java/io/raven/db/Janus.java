@@ -1,9 +1,15 @@
 package io.raven.db;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.raven.db.cache.KeyFilters;
 import io.raven.db.config.JanusConfig;
+import io.raven.db.config.LookupDaoConfig;
+import io.raven.db.dao.DaoException;
 import io.raven.db.dao.LookupDao;
 import io.raven.db.utils.SessionFactoryUtil;
+import io.raven.db.utils.TransactionHandler;
 import lombok.Generated;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -11,6 +17,11 @@ import lombok.val;
 import org.hibernate.SessionFactory;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 
 /**
@@ -25,6 +36,17 @@ public class Janus {
 
   private SessionFactoryUtil sessionFactoryUtil;
 
+  private LookupDaoConfig lookupDaoConfig;
+
+  // Shared by every DAO for batched loads and key filter rebuilds, sized like the connection pool they use
+  private ScheduledExecutorService scheduler;
+
+  // DAOs with the default config, shared by every caller and unit of work so their caches accumulate
+  private final ConcurrentMap<Class<?>, LookupDao<?>> daos = new ConcurrentHashMap<>();
+
+  // One key filter per entity, so keys written through any DAO of the entity are seen by all of them
+  private final KeyFilters keyFilters = new KeyFilters();
+
   /**
    * Default constructor for creating new DbShardingManager.
    * @param janusConfig Sharded database configuration.
@@ -38,15 +60,92 @@ public class Janus {
   private void init(final JanusConfig config, final List<Class<?>> inEntities) {
     sessionFactoryUtil = SessionFactoryUtil.getInstance(config, inEntities);
     sessionFactory = sessionFactoryUtil.getSessionFactory();
+    lookupDaoConfig = config.getLookupDaoConfig() == null ? new LookupDaoConfig() : config.getLookupDaoConfig();
+    scheduler = Executors.newScheduledThreadPool(Math.max(1, config.getMaxPoolSize()), new ThreadFactoryBuilder()
+        .setNameFormat("janus-background-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  /**
+   * Per region hit/miss statistics of the in-memory second level cache.
+   *
+   * @return statistics keyed by region name
+   */
+  public Map<String, CacheStats> getCacheStatistics() {
+    return sessionFactoryUtil.getCacheStatistics();
   }
 
   public boolean close() {
+    scheduler.shutdownNow();
     sessionFactoryUtil.close();
     return true;
   }
 
+  /**
+   * Returns the DAO of the entity with the default config. It is created once per entity and shared with every
+   * {@link UnitOfWork}, so its key cache, single flight and batch loaders serve all callers.
+   *
+   * @param clazz entity class
+   * @param <E>   entity type
+   * @return lookup dao for the entity
+   */
+  @SuppressWarnings("unchecked")
   public <E> LookupDao<E> createParentObjectDao(Class<E> clazz) {
-    return new LookupDao<>(sessionFactory, clazz);
+    return (LookupDao<E>) daos.computeIfAbsent(clazz, entity -> createParentObjectDao(entity, lookupDaoConfig));
+  }
+
+  /**
+   * Creates a new DAO of the entity with its own config. It is not shared, but its key filter is: every DAO of an
+   * entity created by this instance reads and updates the same filter, sized by the first DAO that enabled it.
+   *
+   * @param clazz  entity class
+   * @param config DAO tuning
+   * @param <E>    entity type
+   * @return lookup dao for the entity
+   */
+  public <E> LookupDao<E> createParentObjectDao(Class<E> clazz, LookupDaoConfig config) {
+    return new LookupDao<>(sessionFactory, clazz, config, scheduler, keyFilters);
+  }
+
+  /**
+   * Runs the work in a single read-write session and transaction. All {@link LookupDao} calls made inside join
+   * it, so the work costs one connection checkout and one commit. Any exception rolls the whole unit back.
+   *
+   * @param work work to run
+   * @param <R>  result type
+   * @return result of the work
+   */
+  public <R> R inTransaction(UnitOfWork.Work<R> work) {
+    return execute(false, work);
+  }
+
+  /**
+   * Runs the work in a single read-only session. {@link LookupDao} writes attempted inside fail with a
+   * {@link org.hibernate.TransactionException} instead of joining the session.
+   *
+   * @param work work to run
+   * @param <R>  result type
+   * @return result of the work
+   */
+  public <R> R inReadOnlyTransaction(UnitOfWork.Work<R> work) {
+    return execute(true, work);
+  }
+
+  private <R> R execute(boolean readOnly, UnitOfWork.Work<R> work) {
+    TransactionHandler transactionHandler = new TransactionHandler(sessionFactory, readOnly);
+    transactionHandler.beforeStart();
+    try {
+      R result = work.execute(new UnitOfWork(this, sessionFactory.getCurrentSession(), readOnly));
+      transactionHandler.afterEnd();
+      return result;
+    } catch (RuntimeException e) {
+      transactionHandler.onError(e);
+      throw e;
+    } catch (Exception e) {
+      transactionHandler.onError(e);
+      throw new DaoException(e);
+    }
   }
 
 }
@@ -0,0 +1,49 @@
+package io.raven.db;
+
+import io.raven.db.dao.LookupDao;
+import lombok.Getter;
+import org.hibernate.Session;
+
+
+/**
+ * A session bound to the current thread for the duration of {@link Janus#inTransaction(Work)} or
+ * {@link Janus#inReadOnlyTransaction(Work)}. Every {@link LookupDao} call made inside the unit of work joins this
+ * session and its transaction instead of opening its own.
+ */
+public class UnitOfWork {
+
+  private final Janus janus;
+
+  @Getter
+  private final Session session;
+
+  @Getter
+  private final boolean readOnly;
+
+  UnitOfWork(Janus janus, Session session, boolean readOnly) {
+    this.janus = janus;
+    this.session = session;
+    this.readOnly = readOnly;
+  }
+
+  /**
+   * Returns the DAO of the given entity, the same instance {@link Janus#createParentObjectDao(Class)} hands out.
+   *
+   * @param clazz entity class
+   * @param <E>   entity type
+   * @return lookup dao for the entity
+   */
+  public <E> LookupDao<E> dao(Class<E> clazz) {
+    return janus.createParentObjectDao(clazz);
+  }
+
+  /**
+   * Work to be run inside a unit of work.
+   *
+   * @param <R> result type
+   */
+  @FunctionalInterface
+  public interface Work<R> {
+    R execute(UnitOfWork context) throws Exception;
+  }
+}
@@ -0,0 +1,82 @@
+package io.raven.db.cache;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import io.raven.db.config.CacheConfig;
+import io.raven.db.config.CacheRegionConfig;
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.cache.spi.support.RegionFactoryTemplate;
+import org.hibernate.cache.spi.support.StorageAccess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * In-process second level cache with bounded, expiring regions and per region hit/miss statistics.
+ */
+public class InMemoryRegionFactory extends RegionFactoryTemplate {
+
+  private final CacheConfig cacheConfig;
+
+  private final Map<String, InMemoryStorageAccess> regions = new ConcurrentHashMap<>();
+
+  public InMemoryRegionFactory(CacheConfig cacheConfig) {
+    this.cacheConfig = cacheConfig;
+  }
+
+  /**
+   * Returns hit, miss and eviction counters for every region created so far.
+   *
+   * @return statistics keyed by region name
+   */
+  public Map<String, CacheStats> getStatistics() {
+    ImmutableMap.Builder<String, CacheStats> statistics = ImmutableMap.builder();
+    regions.forEach((name, storage) -> statistics.put(name, storage.stats()));
+    return statistics.build();
+  }
+
+  @Override
+  protected DomainDataStorageAccess createDomainDataStorageAccess(DomainDataRegionConfig regionConfig,
+                                                                  DomainDataRegionBuildingContext buildingContext) {
+    return createStorage(regionConfig.getRegionName());
+  }
+
+  @Override
+  protected StorageAccess createQueryResultsRegionStorageAccess(String regionName,
+                                                                SessionFactoryImplementor sessionFactory) {
+    return createStorage(regionName);
+  }
+
+  @Override
+  protected StorageAccess createTimestampsRegionStorageAccess(String regionName,
+                                                              SessionFactoryImplementor sessionFactory) {
+    // Timestamps hold one entry per table and must never be evicted, or stale query results could be served
+    return regions.computeIfAbsent(regionName, name -> new InMemoryStorageAccess(0, 0));
+  }
+
+  @Override
+  protected void prepareForUse(SessionFactoryOptions settings, Map configValues) {
+    // Regions are created lazily as hibernate asks for them
+  }
+
+  @Override
+  protected void releaseFromUse() {
+    regions.values().forEach(InMemoryStorageAccess::release);
+    regions.clear();
+  }
+
+  private InMemoryStorageAccess createStorage(String regionName) {
+    CacheRegionConfig regionConfig = cacheConfig.getRegions().getOrDefault(regionName,
+        CacheRegionConfig.builder()
+            .maxSize(cacheConfig.getMaxSize())
+            .ttlSeconds(cacheConfig.getTtlSeconds())
+            .build());
+    return regions.computeIfAbsent(regionName,
+        name -> new InMemoryStorageAccess(regionConfig.getMaxSize(), regionConfig.getTtlSeconds()));
+  }
+}
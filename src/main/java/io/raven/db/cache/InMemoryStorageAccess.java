@@ -0,0 +1,64 @@
+package io.raven.db.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bounded storage for a single cache region.
+ */
+class InMemoryStorageAccess implements DomainDataStorageAccess {
+
+  private final Cache<Object, Object> cache;
+
+  InMemoryStorageAccess(long maxSize, long ttlSeconds) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+        .recordStats();
+    if (maxSize > 0) {
+      builder.maximumSize(maxSize);
+    }
+    if (ttlSeconds > 0) {
+      builder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+    }
+    this.cache = builder.build();
+  }
+
+  @Override
+  public Object getFromCache(Object key, SharedSessionContractImplementor session) {
+    return cache.getIfPresent(key);
+  }
+
+  @Override
+  public void putIntoCache(Object key, Object value, SharedSessionContractImplementor session) {
+    cache.put(key, value);
+  }
+
+  @Override
+  public boolean contains(Object key) {
+    return cache.asMap().containsKey(key);
+  }
+
+  @Override
+  public void evictData() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public void evictData(Object key) {
+    cache.invalidate(key);
+  }
+
+  @Override
+  public void release() {
+    cache.invalidateAll();
+  }
+
+  CacheStats stats() {
+    return cache.stats();
+  }
+}
@@ -0,0 +1,32 @@
+package io.raven.db.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+
+/**
+ * Key filters by entity class. DAOs sharing an instance share one filter per entity, so a key written through any
+ * of them is seen by all and the key column is scanned once per entity rather than once per DAO.
+ */
+public class KeyFilters {
+
+  private final ConcurrentMap<Class<?>, KeyMembershipFilter> filters = new ConcurrentHashMap<>();
+
+  /**
+   * @param entityClass entity class
+   * @param factory     creates the filter if the entity has none yet; its sizing then applies to every DAO
+   * @return the filter of the entity
+   */
+  public KeyMembershipFilter computeIfAbsent(Class<?> entityClass, Supplier<KeyMembershipFilter> factory) {
+    return filters.computeIfAbsent(entityClass, clazz -> factory.get());
+  }
+
+  /**
+   * @param entityClass entity class
+   * @return the filter of the entity, or null if no DAO of it has enabled one
+   */
+  public KeyMembershipFilter get(Class<?> entityClass) {
+    return filters.get(entityClass);
+  }
+}
@@ -0,0 +1,221 @@
+package io.raven.db.cache;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+
+/**
+ * Bloom filter over the lookup keys of a table. It answers "definitely absent" without a database round trip and
+ * "maybe present" otherwise. Memory is fixed by the expected number of keys and the false positive rate.
+ * <p>
+ * The filter is built on the executor by scanning every key through the loader; until the first build completes
+ * every key is reported as maybe present. Keys written through the DAOs sharing it are added before the write and
+ * stay registered as in flight until its transaction completes. A rebuild replays every key in flight when its
+ * scan starts and every key put while it runs, so a write committing after the scan's snapshot is never lost. Rows
+ * inserted by any other path are only picked up by the periodic rebuild, which also restores the false positive
+ * rate once more keys than expected have been added.
+ */
+@Slf4j
+public class KeyMembershipFilter {
+
+  private final long expectedKeys;
+
+  private final double falsePositiveRate;
+
+  private final long rebuildIntervalMillis;
+
+  private final Consumer<Consumer<String>> loader;
+
+  private final Executor executor;
+
+  private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+  private final AtomicLong checks = new AtomicLong();
+
+  private final AtomicLong absent = new AtomicLong();
+
+  private volatile BloomFilter<CharSequence> filter;
+
+  private volatile long builtAt;
+
+  // Bumped by invalidate so a rebuild that was already scanning does not swap in an outdated filter
+  private long generation;
+
+  // Keys put while a rebuild is scanning, replayed into the new filter before it is swapped in
+  private Set<String> pending;
+
+  // Keys whose write has not completed yet, with the number of such writes
+  private final Map<String, Integer> inFlight = new HashMap<>();
+
+  /**
+   * @param expectedKeys          number of keys the filter is sized for
+   * @param falsePositiveRate     false positive rate at the expected number of keys
+   * @param rebuildIntervalSeconds seconds after which the filter is rebuilt from the table, 0 to never rebuild
+   * @param loader                feeds every key of the table to the given consumer
+   * @param executor              runs the rebuilds
+   */
+  public KeyMembershipFilter(long expectedKeys, double falsePositiveRate, long rebuildIntervalSeconds,
+                             Consumer<Consumer<String>> loader, Executor executor) {
+    this.expectedKeys = expectedKeys;
+    this.falsePositiveRate = falsePositiveRate;
+    this.rebuildIntervalMillis = TimeUnit.SECONDS.toMillis(rebuildIntervalSeconds);
+    this.loader = loader;
+    this.executor = executor;
+  }
+
+  /**
+   * @param key lookup key
+   * @return false only if the key is definitely not in the table
+   */
+  public boolean mightContain(String key) {
+    checks.incrementAndGet();
+    if (needsRebuild()) {
+      scheduleRebuild();
+    }
+    BloomFilter<CharSequence> current = filter;
+    if (current == null || current.mightContain(key)) {
+      return true;
+    }
+    absent.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Records a key that is about to be written. The key stays in flight until {@link #written(String)} is called
+   * for it once the write's transaction has completed.
+   *
+   * @param key lookup key
+   */
+  public synchronized void put(String key) {
+    if (key == null) {
+      return;
+    }
+    if (filter != null) {
+      filter.put(key);
+    }
+    if (pending != null) {
+      pending.add(key);
+    }
+    inFlight.merge(key, 1, Integer::sum);
+  }
+
+  /**
+   * Marks a write of the key as completed, committed or not.
+   *
+   * @param key lookup key given to {@link #put(String)}
+   */
+  public synchronized void written(String key) {
+    if (key != null) {
+      inFlight.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+    }
+  }
+
+  /**
+   * @return true once a filter has been built
+   */
+  public boolean isBuilt() {
+    return filter != null;
+  }
+
+  /**
+   * Drops the filter; it is rebuilt on the next check. Used after writes the DAO cannot track key by key.
+   */
+  public synchronized void invalidate() {
+    filter = null;
+    generation++;
+  }
+
+  private boolean needsRebuild() {
+    BloomFilter<CharSequence> current = filter;
+    if (current == null) {
+      return true;
+    }
+    return (rebuildIntervalMillis > 0 && System.currentTimeMillis() - builtAt > rebuildIntervalMillis)
+        || current.approximateElementCount() > expectedKeys;
+  }
+
+  private void scheduleRebuild() {
+    if (!rebuilding.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(this::rebuild);
+    } catch (RejectedExecutionException e) {
+      rebuilding.set(false);
+      log.warn("Key filter rebuild rejected, lookups will go to the database", e);
+    }
+  }
+
+  private void rebuild() {
+    try {
+      if (!needsRebuild()) {
+        return;
+      }
+      long start = System.currentTimeMillis();
+      long startGeneration;
+      synchronized (this) {
+        // Writes still in flight may commit after the scan's snapshot, so their keys are replayed too
+        pending = new HashSet<>(inFlight.keySet());
+        startGeneration = generation;
+      }
+      BloomFilter<CharSequence> rebuilt = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+          expectedKeys, falsePositiveRate);
+      try {
+        loader.accept(rebuilt::put);
+      } catch (RuntimeException e) {
+        log.warn("Error rebuilding key filter, the current filter is kept", e);
+        synchronized (this) {
+          pending = null;
+        }
+        return;
+      }
+      synchronized (this) {
+        pending.forEach(rebuilt::put);
+        pending = null;
+        if (startGeneration != generation) {
+          return;
+        }
+        filter = rebuilt;
+        builtAt = System.currentTimeMillis();
+      }
+      log.debug("Rebuilt key filter with ~{} keys in {}ms", rebuilt.approximateElementCount(), builtAt - start);
+    } finally {
+      rebuilding.set(false);
+    }
+  }
+
+  /**
+   * @return number of membership checks
+   */
+  public long getChecks() {
+    return checks.get();
+  }
+
+  /**
+   * @return number of checks answered as definitely absent
+   */
+  public long getAbsent() {
+    return absent.get();
+  }
+
+  /**
+   * @return expected false positive rate at the current number of keys
+   */
+  public double getExpectedFalsePositiveRate() {
+    BloomFilter<CharSequence> current = filter;
+    return current == null ? 0 : current.expectedFpp();
+  }
+}
@@ -0,0 +1,48 @@
+package io.raven.db.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.Generated;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Second level cache configuration. Only entities annotated with {@code @Cacheable} are cached.
+ *
+ * @author phaneesh
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Generated
+public class CacheConfig implements Serializable {
+
+  private boolean enabled;
+
+  /**
+   * Hibernate region factory class. When empty the bundled in-memory region factory is used.
+   */
+  private String regionFactory;
+
+  @Builder.Default
+  private boolean queryCache = false;
+
+  @Builder.Default
+  private long maxSize = 10000;
+
+  @Builder.Default
+  private long ttlSeconds = 300;
+
+  /**
+   * Overrides for individual regions, keyed by region name. Entity regions are named after the entity class.
+   */
+  @Builder.Default
+  private Map<String, CacheRegionConfig> regions = new HashMap<>();
+
+}
@@ -0,0 +1,30 @@
+package io.raven.db.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.Generated;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+
+/**
+ * Size and expiry of a single cache region.
+ *
+ * @author phaneesh
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Generated
+public class CacheRegionConfig implements Serializable {
+
+  @Builder.Default
+  private long maxSize = 10000;
+
+  @Builder.Default
+  private long ttlSeconds = 300;
+
+}
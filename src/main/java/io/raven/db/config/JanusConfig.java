@@ -55,4 +55,23 @@ public class JanusConfig implements Serializable {
   @Builder.Default
   private int maxAge = 60000;
 
+  /**
+   * JDBC batch size for inserts and updates, also the number of entities after which save(List) flushes and
+   * detaches what it saved. 0 disables batching. Entities with IDENTITY ids are never insert batched.
+   */
+  @Builder.Default
+  private int batchSize = 50;
+
+  @Builder.Default
+  private boolean orderInserts = true;
+
+  @Builder.Default
+  private boolean orderUpdates = true;
+
+  @Builder.Default
+  private CacheConfig cacheConfig = new CacheConfig();
+
+  @Builder.Default
+  private LookupDaoConfig lookupDaoConfig = new LookupDaoConfig();
+
 }
\ No newline at end of file
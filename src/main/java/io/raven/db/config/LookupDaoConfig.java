@@ -0,0 +1,70 @@
+package io.raven.db.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.Generated;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+
+/**
+ * Per DAO tuning applied to every {@link io.raven.db.dao.LookupDao} created by Janus.
+ *
+ * @author phaneesh
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@Generated
+public class LookupDaoConfig implements Serializable {
+
+  private boolean keyCacheEnabled;
+
+  @Builder.Default
+  private long keyCacheMaxSize = 10000;
+
+  @Builder.Default
+  private long keyCacheTtlSeconds = 300;
+
+  private boolean keyFilterEnabled;
+
+  @Builder.Default
+  private long keyFilterExpectedKeys = 1000000;
+
+  @Builder.Default
+  private double keyFilterFalsePositiveRate = 0.01;
+
+  @Builder.Default
+  private long keyFilterRebuildSeconds = 3600;
+
+  /**
+   * Caches results of criteria, HQL select and aggregate calls in the query cache. Needs
+   * {@link CacheConfig#isQueryCache()}; the entity should be {@code @Cacheable} so cached ids resolve from the
+   * second level cache.
+   */
+  private boolean queryCacheEnabled;
+
+  /**
+   * Query cache region for the DAO. Defaults to {@code query.<entity class name>}.
+   */
+  private String queryCacheRegion;
+
+  /**
+   * Lets concurrent get(id) and lookup(key) calls for the same id or key share one database load. Handlers then
+   * receive the same detached entity and must not modify it or touch lazy associations.
+   */
+  private boolean singleFlightEnabled;
+
+  /**
+   * How long getAsync/lookupAsync wait for other calls to join a batch.
+   */
+  @Builder.Default
+  private long batchWindowMillis = 2;
+
+  @Builder.Default
+  private int batchMaxSize = 100;
+
+}
@@ -81,15 +81,13 @@ public class AbstractDao<E> {
    * checks (see the manual for discussion of unsaved-value checking).
    * <p/>
    * This operation cascades to associated instances if the association is mapped with
-   * <tt>cascade="save-update"</tt>.
+   * <tt>cascade="save-update"</tt>. An instance already in the session is left as is; its changes are
+   * written by dirty checking at flush.
    *
    * @param entity a transient or detached instance containing new or updated state
    * @see Session#saveOrUpdate(Object)
    */
   protected E persist(E entity) {
-    if (currentSession().contains(entity)) {
-      currentSession().refresh(entity);
-    }
     currentSession().saveOrUpdate(requireNonNull(entity));
     return entity;
   }
@@ -0,0 +1,351 @@
+package io.raven.db.dao;
+
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.action.internal.BulkOperationCleanupAction;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL95Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+
+/**
+ * Inserts entities with plain JDBC, bypassing the persistence context. Rows are written with multi-row
+ * {@code INSERT ... VALUES (...), (...)} statements built from the entity's mapped columns, or with a JDBC batch
+ * of single row inserts when the dialect has no multi-row VALUES. IDENTITY ids are read back from the generated
+ * keys when the driver returns them; other ids are generated up front through the entity's id generator.
+ * <p>
+ * Upserts use the same column list with the dialect's insert-or-update statement, matched on the lookup key
+ * column: {@code MERGE} on H2, {@code ON CONFLICT} on PostgreSQL 9.5+ and {@code ON DUPLICATE KEY} on MySQL.
+ * Rows that already exist keep their id; entities of existing keys get the stored id instead of a new one, and
+ * every id is read back by key after the statement.
+ */
+@Slf4j
+class BulkInserter<T> {
+
+  private static final int MAX_ROWS = 1000;
+
+  // Stays below the bind parameter limit of every supported database (SQL Server allows 2100)
+  private static final int MAX_PARAMETERS = 2000;
+
+  private final SessionFactoryImplementor factory;
+
+  private final AbstractEntityPersister persister;
+
+  private final Field idField;
+
+  private final Field keyField;
+
+  private final boolean identity;
+
+  private final List<Integer> properties = new ArrayList<>();
+
+  private final String keyColumn;
+
+  private final String versionColumn;
+
+  private final List<String> columnNames = new ArrayList<>();
+
+  private final List<String> updateColumns = new ArrayList<>();
+
+  private final String columns;
+
+  private final String row;
+
+  private final int columnsPerRow;
+
+  BulkInserter(SessionFactoryImplementor factory, Class<T> entityClass, Field idField, Field keyField) {
+    this.factory = factory;
+    this.persister = (AbstractEntityPersister) factory.getMetamodel().entityPersister(entityClass);
+    this.idField = idField;
+    this.keyField = keyField;
+    this.identity = persister.getIdentifierGenerator() instanceof IdentityGenerator;
+    this.keyColumn = persister.getPropertyColumnNames(keyField.getName())[0];
+    this.versionColumn = persister.isVersioned()
+        && Number.class.isAssignableFrom(persister.getVersionType().getReturnedClass())
+        ? persister.getPropertyColumnNames(persister.getVersionProperty())[0] : null;
+    if (!identity) {
+      Collections.addAll(columnNames, persister.getIdentifierColumnNames());
+    }
+    Type[] types = persister.getPropertyTypes();
+    boolean[] insertable = persister.getPropertyInsertability();
+    for (int i = 0; i < types.length; i++) {
+      if (insertable[i] && !types[i].isCollectionType()) {
+        properties.add(i);
+        for (String column : persister.getPropertyColumnNames(i)) {
+          columnNames.add(column);
+          if (!column.equals(keyColumn)) {
+            updateColumns.add(column);
+          }
+        }
+      }
+    }
+    this.columnsPerRow = columnNames.size();
+    this.columns = "(" + String.join(", ", columnNames) + ")";
+    this.row = "(" + String.join(", ", Collections.nCopies(columnsPerRow, "?")) + ")";
+  }
+
+  List<T> insert(Session session, List<T> entities) {
+    SessionImplementor implementor = prepareEntities(session, entities);
+    if (!identity) {
+      entities.forEach(entity -> assignId(implementor, entity));
+    }
+    Dialect dialect = factory.getJdbcServices().getDialect();
+    session.doWork(connection -> {
+      if (dialect.supportsValuesList()) {
+        for (List<T> chunk : Lists.partition(entities, rowsPerStatement())) {
+          insertMultiRow(connection, implementor, chunk);
+        }
+      } else {
+        for (List<T> chunk : Lists.partition(entities, MAX_ROWS)) {
+          insertBatch(connection, implementor, chunk);
+        }
+      }
+    });
+    invalidateCaches(implementor);
+    return entities;
+  }
+
+  /**
+   * Inserts the entities, or updates every column but the id of the row that already has the same lookup key.
+   * The ids of the stored rows are set on the entities afterwards.
+   *
+   * @return rows affected as reported by the driver; MySQL counts an updated row twice
+   */
+  int upsert(Session session, List<T> entities) {
+    String upsert = upsertTemplate(factory.getJdbcServices().getDialect());
+    SessionImplementor implementor = prepareEntities(session, entities);
+    int affected = 0;
+    for (List<T> chunk : Lists.partition(entities, rowsPerStatement())) {
+      if (!identity) {
+        // Existing rows keep their id, so only new keys take a value from the generator
+        Map<String, Long> existing = session.doReturningWork(connection -> readIds(connection, chunk));
+        for (T entity : chunk) {
+          Long id = existing.get(keyOf(entity));
+          if (id == null) {
+            assignId(implementor, entity);
+          } else {
+            setId(entity, id);
+          }
+        }
+      }
+      affected += session.doReturningWork(connection -> {
+        String sql = String.format(upsert, String.join(", ", Collections.nCopies(chunk.size(), row)));
+        factory.getJdbcServices().getSqlStatementLogger().logStatement(sql);
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+          int index = 1;
+          for (T entity : chunk) {
+            index = bind(statement, implementor, entity, index);
+          }
+          return statement.executeUpdate();
+        }
+      });
+      // A row inserted concurrently since the ids were read keeps its own id, as do IDENTITY rows
+      Map<String, Long> stored = session.doReturningWork(connection -> readIds(connection, chunk));
+      for (T entity : chunk) {
+        Long id = stored.get(keyOf(entity));
+        if (id != null) {
+          setId(entity, id);
+        }
+      }
+    }
+    invalidateCaches(implementor);
+    return affected;
+  }
+
+  private Map<String, Long> readIds(Connection connection, List<T> chunk) throws SQLException {
+    String sql = "select " + persister.getIdentifierColumnNames()[0] + ", " + keyColumn + " from "
+        + persister.getTableName() + " where " + keyColumn + " in ("
+        + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+    factory.getJdbcServices().getSqlStatementLogger().logStatement(sql);
+    Map<String, Long> ids = new HashMap<>();
+    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+      for (int i = 0; i < chunk.size(); i++) {
+        statement.setString(i + 1, keyOf(chunk.get(i)));
+      }
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          ids.put(result.getString(2), result.getLong(1));
+        }
+      }
+    }
+    return ids;
+  }
+
+  private String keyOf(T entity) {
+    try {
+      return (String) keyField.get(entity);
+    } catch (IllegalAccessException e) {
+      throw new DaoException("Error reading lookup key of " + persister.getEntityName(), e);
+    }
+  }
+
+  /**
+   * Upsert statement for the dialect, with a {@code %s} placeholder for the rows.
+   */
+  private String upsertTemplate(Dialect dialect) {
+    String table = persister.getTableName();
+    if (dialect instanceof H2Dialect) {
+      // H2 names the columns of a VALUES table C1, C2, ...
+      return "merge into " + table + " t using (values %s) s on t." + keyColumn + " = s." + source(keyColumn)
+          + " when matched then update set " + assignments("t", column -> column + " = s." + source(column))
+          + " when not matched then insert " + columns + " values ("
+          + columnNames.stream().map(column -> "s." + source(column)).collect(Collectors.joining(", ")) + ")";
+    }
+    if (dialect instanceof PostgreSQL95Dialect) {
+      return "insert into " + table + " " + columns + " values %s on conflict (" + keyColumn + ") do update set "
+          + assignments(table, column -> column + " = excluded." + column);
+    }
+    if (dialect instanceof MySQLDialect) {
+      return "insert into " + table + " " + columns + " values %s on duplicate key update "
+          + assignments(table, column -> column + " = values(" + column + ")");
+    }
+    throw new DaoException("Upsert is not supported for dialect " + dialect.getClass().getSimpleName());
+  }
+
+  private String source(String column) {
+    return "C" + (columnNames.indexOf(column) + 1);
+  }
+
+  /**
+   * SET list of the update branch. A numeric version is incremented on the existing row rather than overwritten,
+   * so concurrent optimistic updates still see the change.
+   */
+  private String assignments(String target, Function<String, String> assignment) {
+    return updateColumns.stream()
+        .map(column -> column.equals(versionColumn) ? column + " = " + target + "." + column + " + 1"
+            : assignment.apply(column))
+        .collect(Collectors.joining(", "));
+  }
+
+  private SessionImplementor prepareEntities(Session session, List<T> entities) {
+    if (persister.getTableSpan() != 1) {
+      throw new DaoException("Bulk writes support entities mapped to a single table: " + persister.getEntityName());
+    }
+    SessionImplementor implementor = session.unwrap(SessionImplementor.class);
+    if (persister.isVersioned()) {
+      // Hibernate seeds a null version on insert; without it an upsert's version + 1 would stay null
+      int versionProperty = persister.getVersionProperty();
+      for (T entity : entities) {
+        if (persister.getPropertyValue(entity, versionProperty) == null) {
+          persister.setPropertyValue(entity, versionProperty, persister.getVersionType().seed(implementor));
+        }
+      }
+    }
+    return implementor;
+  }
+
+  private int rowsPerStatement() {
+    return Math.max(1, Math.min(MAX_ROWS, MAX_PARAMETERS / Math.max(1, columnsPerRow)));
+  }
+
+  /**
+   * Drops cached entities and queries of the table, as Hibernate does for its own bulk statements.
+   */
+  private void invalidateCaches(SessionImplementor session) {
+    session.getActionQueue().addAction(new BulkOperationCleanupAction(session, persister));
+  }
+
+  private void insertMultiRow(Connection connection, SharedSessionContractImplementor session,
+                              List<T> chunk) throws SQLException {
+    String sql = "insert into " + persister.getTableName() + " " + columns + " values "
+        + String.join(", ", Collections.nCopies(chunk.size(), row));
+    factory.getJdbcServices().getSqlStatementLogger().logStatement(sql);
+    try (PreparedStatement statement = prepare(connection, sql)) {
+      int index = 1;
+      for (T entity : chunk) {
+        index = bind(statement, session, entity, index);
+      }
+      statement.executeUpdate();
+      readGeneratedIds(statement, chunk);
+    }
+  }
+
+  private void insertBatch(Connection connection, SharedSessionContractImplementor session,
+                           List<T> chunk) throws SQLException {
+    String sql = "insert into " + persister.getTableName() + " " + columns + " values " + row;
+    factory.getJdbcServices().getSqlStatementLogger().logStatement(sql);
+    try (PreparedStatement statement = prepare(connection, sql)) {
+      for (T entity : chunk) {
+        bind(statement, session, entity, 1);
+        statement.addBatch();
+      }
+      statement.executeBatch();
+      readGeneratedIds(statement, chunk);
+    }
+  }
+
+  private PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+    return identity
+        ? connection.prepareStatement(sql, persister.getIdentifierColumnNames())
+        : connection.prepareStatement(sql);
+  }
+
+  private int bind(PreparedStatement statement, SharedSessionContractImplementor session, T entity,
+                   int start) throws SQLException {
+    int index = start;
+    if (!identity) {
+      persister.getIdentifierType().nullSafeSet(statement, persister.getIdentifier(entity, session), index, session);
+      index += persister.getIdentifierType().getColumnSpan(factory);
+    }
+    Object[] values = persister.getPropertyValues(entity);
+    Type[] types = persister.getPropertyTypes();
+    for (int property : properties) {
+      types[property].nullSafeSet(statement, values[property], index, session);
+      index += types[property].getColumnSpan(factory);
+    }
+    return index;
+  }
+
+  private void readGeneratedIds(PreparedStatement statement, List<T> chunk) throws SQLException {
+    if (!identity) {
+      return;
+    }
+    List<Long> ids = new ArrayList<>(chunk.size());
+    try (ResultSet keys = statement.getGeneratedKeys()) {
+      while (keys.next()) {
+        ids.add(keys.getLong(1));
+      }
+    }
+    if (ids.size() != chunk.size()) {
+      log.debug("Driver returned {} generated ids for {} rows of {}, ids not assigned", ids.size(), chunk.size(),
+          persister.getEntityName());
+      return;
+    }
+    for (int i = 0; i < chunk.size(); i++) {
+      setId(chunk.get(i), ids.get(i));
+    }
+  }
+
+  private void assignId(SharedSessionContractImplementor session, T entity) {
+    setId(entity, persister.getIdentifierGenerator().generate(session, entity));
+  }
+
+  private void setId(T entity, Object id) {
+    try {
+      idField.set(entity, ((Number) id).longValue());
+    } catch (IllegalAccessException e) {
+      throw new DaoException("Error setting id of " + persister.getEntityName(), e);
+    }
+  }
+}
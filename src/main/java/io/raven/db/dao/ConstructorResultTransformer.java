@@ -0,0 +1,49 @@
+package io.raven.db.dao;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.hibernate.transform.ResultTransformer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Maps every row of a projection to a new instance of a DTO or record through the constructor whose parameters
+ * match the column types in order. The types come from the query rather than from row values, so a null column
+ * cannot select the wrong overload.
+ *
+ * @param <R> result type
+ */
+class ConstructorResultTransformer<R> implements ResultTransformer {
+
+  private final Class<R> resultClass;
+
+  private final Constructor<R> constructor;
+
+  ConstructorResultTransformer(Class<R> resultClass, Class<?>[] columnTypes) {
+    this.resultClass = resultClass;
+    this.constructor = ConstructorUtils.getMatchingAccessibleConstructor(resultClass, columnTypes);
+    if (constructor == null) {
+      throw new IllegalArgumentException("No public constructor of " + resultClass.getSimpleName() + " takes "
+          + ClassUtils.convertClassesToClassNames(Arrays.asList(columnTypes)));
+    }
+  }
+
+  @Override
+  public Object transformTuple(Object[] tuple, String[] aliases) {
+    try {
+      return constructor.newInstance(tuple);
+    } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+      throw new DaoException("Error creating " + resultClass.getSimpleName(), e);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public List transformList(List collection) {
+    return collection;
+  }
+}
@@ -0,0 +1,72 @@
+package io.raven.db.dao;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ * Streams the rows of a forward only cursor opened in a session that belongs to the stream. The session's
+ * transaction is begun before the cursor is opened and committed when the stream is closed; if the cursor cannot
+ * be opened the transaction is rolled back and the session closed.
+ */
+final class CursorStream {
+
+  private CursorStream() {
+  }
+
+  /**
+   * @param session     session owned by the stream
+   * @param entityClass type of the first column of every row
+   * @param cursor      opens the cursor once the transaction has begun
+   * @param clearEvery  rows between calls to clear, ignored when clear is null
+   * @param clear       releases the rows read so far before the next chunk, or null
+   * @return lazily populated stream that must be closed
+   */
+  static <S extends SharedSessionContract, T> Stream<T> open(S session, Class<T> entityClass,
+      Function<S, ScrollableResults> cursor, int clearEvery, Consumer<S> clear) {
+    try {
+      session.beginTransaction();
+      ScrollableResults results = cursor.apply(session);
+      Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+          Spliterator.ORDERED | Spliterator.NONNULL) {
+        private long rows;
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+          if (clear != null && rows > 0 && rows % clearEvery == 0) {
+            clear.accept(session);
+          }
+          if (!results.next()) {
+            return false;
+          }
+          rows++;
+          action.accept(entityClass.cast(results.get(0)));
+          return true;
+        }
+      };
+      return StreamSupport.stream(spliterator, false)
+          .onClose(() -> {
+            try {
+              results.close();
+              session.getTransaction().commit();
+            } finally {
+              session.close();
+            }
+          });
+    } catch (Exception e) {
+      if (session.getTransaction().getStatus() == TransactionStatus.ACTIVE) {
+        session.getTransaction().rollback();
+      }
+      session.close();
+      throw new DaoException("Error streaming " + entityClass.getSimpleName(), e);
+    }
+  }
+}
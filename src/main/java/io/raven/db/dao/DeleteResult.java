@@ -0,0 +1,40 @@
+package io.raven.db.dao;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Rows removed by a {@link LookupDao} delete, with the size and duration of every statement it ran.
+ */
+@Data
+public class DeleteResult {
+
+  private long rows;
+
+  private final List<Chunk> chunks = new ArrayList<>();
+
+  void add(Chunk chunk) {
+    rows += chunk.getRows();
+    chunks.add(chunk);
+  }
+
+  /**
+   * @return total time spent deleting
+   */
+  public long getMillis() {
+    return chunks.stream().mapToLong(Chunk::getMillis).sum();
+  }
+
+  @Data
+  @AllArgsConstructor
+  public static class Chunk {
+
+    private int rows;
+
+    private long millis;
+  }
+}
@@ -3,46 +3,140 @@ package io.raven.db.dao;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.raven.db.annotations.LookupKey;
+import io.raven.db.cache.KeyFilters;
+import io.raven.db.cache.KeyMembershipFilter;
+import io.raven.db.config.LookupDaoConfig;
+import io.raven.db.utils.BatchLoader;
+import io.raven.db.utils.LockFailures;
+import io.raven.db.utils.RetryMetrics;
+import io.raven.db.utils.RetryPolicy;
+import io.raven.db.utils.SingleFlight;
 import io.raven.db.utils.TransactionHandler;
 import io.raven.db.utils.Transactions;
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
 import org.hibernate.LockMode;
 import org.hibernate.LockOptions;
 import org.hibernate.MultiIdentifierLoadAccess;
+import org.hibernate.QueryException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.action.internal.BulkOperationCleanupAction;
+import org.hibernate.context.internal.ManagedSessionContext;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projection;
+import org.hibernate.criterion.ProjectionList;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.PostgreSQL82Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.internal.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaQueryTranslator;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.query.NativeQuery;
 import org.hibernate.query.Query;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.transform.ResultTransformer;
+import org.hibernate.tuple.entity.EntityMetamodel;
+import org.hibernate.type.Type;
 
 import javax.persistence.Id;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Version;
 import javax.persistence.criteria.CriteriaUpdate;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Slf4j
 public class LookupDao<T> {
 
+  private static final int DEFAULT_OPTIMISTIC_ATTEMPTS = 3;
+  private static final int KEY_SCAN_FETCH_SIZE = 1000;
+  private static final int DEFAULT_DELETE_CHUNK_SIZE = 1000;
 
   private final Class<T> entityClass;
   private final Field idField;
   private final Field keyField;
+  private final Field versionField;
+  private final List<Method> prePersistCallbacks;
+  private final List<Method> preUpdateCallbacks;
+  private final RetryMetrics lockRetryMetrics = new RetryMetrics();
+  private final Cache<String, Long> keyCache;
+  private final KeyMembershipFilter keyFilter;
+  private final KeyFilters keyFilters;
+  private final String queryCacheRegion;
+  private final SingleFlight<Long, T> getFlights;
+  private final SingleFlight<String, T> lookupFlights;
+  private final int jdbcBatchSize;
+  private final BulkInserter<T> bulkInserter;
+  private final EntityPersister persister;
+  private final BatchLoader<Long, T> idLoader;
+  private final BatchLoader<String, T> keyLoader;
 
   @VisibleForTesting
   private final InternalDao dao;
@@ -53,6 +147,42 @@ public class LookupDao<T> {
    * @param sessionFactory a session provider for each shard
    */
   public LookupDao(SessionFactory sessionFactory, Class<T> entityClass) {
+    this(sessionFactory, entityClass, new LookupDaoConfig());
+  }
+
+  /**
+   * Creates a new Lookup DAO.
+   *
+   * @param sessionFactory a session provider for each shard
+   * @param config         DAO tuning
+   */
+  public LookupDao(SessionFactory sessionFactory, Class<T> entityClass, LookupDaoConfig config) {
+    this(sessionFactory, entityClass, config, BackgroundScheduler.INSTANCE);
+  }
+
+  /**
+   * Creates a new Lookup DAO.
+   *
+   * @param sessionFactory a session provider for each shard
+   * @param config         DAO tuning
+   * @param scheduler      runs batched loads and key filter rebuilds; owned by the caller
+   */
+  public LookupDao(SessionFactory sessionFactory, Class<T> entityClass, LookupDaoConfig config,
+                   ScheduledExecutorService scheduler) {
+    this(sessionFactory, entityClass, config, scheduler, new KeyFilters());
+  }
+
+  /**
+   * Creates a new Lookup DAO.
+   *
+   * @param sessionFactory a session provider for each shard
+   * @param config         DAO tuning
+   * @param scheduler      runs batched loads and key filter rebuilds; owned by the caller
+   * @param keyFilters     key filters shared with other DAOs of the same entity; writes through this DAO reach
+   *                       the entity's filter even when it does not read through one itself
+   */
+  public LookupDao(SessionFactory sessionFactory, Class<T> entityClass, LookupDaoConfig config,
+                   ScheduledExecutorService scheduler, KeyFilters keyFilters) {
     this.dao = new InternalDao(sessionFactory);
     this.entityClass = entityClass;
     Field[] lookupFields = FieldUtils.getFieldsWithAnnotation(entityClass, LookupKey.class);
@@ -69,10 +199,52 @@ public class LookupDao<T> {
     }
     idField = idFields[0];
     Preconditions.checkArgument(ClassUtils.isAssignable(idField.getType(), Long.class), "Key field must be a Long");
-    if (!keyField.trySetAccessible()) {
+    if (!idField.trySetAccessible()) {
       log.error("Error making Key field accessible please use a public method and mark that as Key");
       throw new IllegalArgumentException("Invalid class, DAO cannot be created. Key is not accessible");
     }
+    Field[] versionFields = FieldUtils.getFieldsWithAnnotation(entityClass, Version.class);
+    Preconditions.checkArgument(versionFields.length <= 1, "Only one field can be a version");
+    versionField = versionFields.length == 0 ? null : versionFields[0];
+    prePersistCallbacks = MethodUtils.getMethodsListWithAnnotation(entityClass, PrePersist.class, true, true);
+    preUpdateCallbacks = MethodUtils.getMethodsListWithAnnotation(entityClass, PreUpdate.class, true, true);
+    prePersistCallbacks.forEach(Method::trySetAccessible);
+    preUpdateCallbacks.forEach(Method::trySetAccessible);
+    keyCache = config.isKeyCacheEnabled() ? CacheBuilder.newBuilder()
+        .maximumSize(config.getKeyCacheMaxSize())
+        .expireAfterWrite(config.getKeyCacheTtlSeconds(), TimeUnit.SECONDS)
+        .recordStats()
+        .build() : null;
+    this.keyFilters = keyFilters;
+    keyFilter = config.isKeyFilterEnabled() ? keyFilters.computeIfAbsent(entityClass, () -> new KeyMembershipFilter(
+        config.getKeyFilterExpectedKeys(), config.getKeyFilterFalsePositiveRate(),
+        config.getKeyFilterRebuildSeconds(), this::loadKeys, scheduler)) : null;
+    queryCacheRegion = queryCacheRegion(sessionFactory, config);
+    getFlights = config.isSingleFlightEnabled() ? new SingleFlight<>() : null;
+    lookupFlights = config.isSingleFlightEnabled() ? new SingleFlight<>() : null;
+    idLoader = new BatchLoader<>(this::getBatch, config.getBatchWindowMillis(), config.getBatchMaxSize(), scheduler);
+    keyLoader = new BatchLoader<>(this::lookupBatch, config.getBatchWindowMillis(), config.getBatchMaxSize(),
+        scheduler);
+    SessionFactoryImplementor factory = sessionFactory.unwrap(SessionFactoryImplementor.class);
+    persister = factory.getMetamodel().entityPersister(entityClass);
+    jdbcBatchSize = factory.getSessionFactoryOptions().getJdbcBatchSize();
+    if (jdbcBatchSize > 1 && persister.getIdentifierGenerator() instanceof IdentityGenerator) {
+      log.warn("{} uses IDENTITY ids, Hibernate cannot batch its inserts; use a SEQUENCE id to batch saves",
+          entityClass.getSimpleName());
+    }
+    bulkInserter = new BulkInserter<>(factory, entityClass, idField, keyField);
+  }
+
+  private String queryCacheRegion(SessionFactory sessionFactory, LookupDaoConfig config) {
+    if (!config.isQueryCacheEnabled()) {
+      return null;
+    }
+    if (!sessionFactory.getSessionFactoryOptions().isQueryCacheEnabled()) {
+      log.warn("Query cache requested for {} but it is not enabled in the cache config", entityClass.getSimpleName());
+      return null;
+    }
+    return Strings.isNullOrEmpty(config.getQueryCacheRegion())
+        ? "query." + entityClass.getName() : config.getQueryCacheRegion();
   }
 
   public Class<T> getEntityClass() {
@@ -83,15 +255,144 @@ public class LookupDao<T> {
     return get(id, t -> t);
   }
 
+  /**
+   * Loads the entity by id. With single flight enabled and no session bound, concurrent calls for the same id
+   * share one load and each applies its handler to the shared entity after the load's session is closed.
+   */
   public <U> Optional<U> get(Long id, Function<T, U> handler) throws Exception {
+    if (coalesce(getFlights)) {
+      T entity = getFlights.execute(id, () -> Transactions.execute(dao.sessionFactory, true, dao::get, id));
+      return Optional.ofNullable(handler.apply(entity));
+    }
     U result = Transactions.execute(dao.sessionFactory, true, dao::get, id, handler);
     return Optional.ofNullable(result);
   }
 
+  /**
+   * Queues the id for a batched load. Ids requested from any thread within the batch window are loaded with a
+   * single multi-id load. The load runs in its own session, so it sees committed data only.
+   *
+   * @param id id of the entity
+   * @return future completed with the entity, empty if it does not exist
+   */
+  public CompletableFuture<Optional<T>> getAsync(Long id) {
+    return idLoader.load(id).thenApply(Optional::ofNullable);
+  }
+
+  /**
+   * Queues the key for a batched lookup. Keys requested from any thread within the batch window are looked up
+   * with a single IN query. Keys are expected to be unique; if not, the row with the lowest id is returned.
+   *
+   * @param key lookup key
+   * @return future completed with the entity, empty if it does not exist
+   */
+  public CompletableFuture<Optional<T>> lookupAsync(String key) {
+    if (keyFilter != null && !keyFilter.mightContain(key)) {
+      return CompletableFuture.completedFuture(Optional.empty());
+    }
+    return keyLoader.load(key).thenApply(Optional::ofNullable);
+  }
+
+  private Map<Long, T> getBatch(List<Long> ids) {
+    List<T> entities = Transactions.execute(dao.sessionFactory, true, dao::get, ids);
+    Map<Long, T> result = new HashMap<>();
+    for (T entity : entities) {
+      if (entity != null) {
+        result.put(idOf(entity), entity);
+      }
+    }
+    return result;
+  }
+
+  private Map<String, T> lookupBatch(List<String> keys) {
+    DetachedCriteria criteria = DetachedCriteria.forClass(entityClass)
+        .add(Restrictions.in(keyField.getName(), keys))
+        .addOrder(Order.asc(idField.getName()));
+    List<T> entities = Transactions.execute(dao.sessionFactory, true, dao::select, criteria);
+    Map<String, T> result = new HashMap<>();
+    for (T entity : entities) {
+      String key = keyOf(entity);
+      if (result.putIfAbsent(key, entity) != null) {
+        log.warn("Lookup key {} of {} is not unique", key, entityClass.getSimpleName());
+      } else if (keyCache != null) {
+        keyCache.put(key, idOf(entity));
+      }
+    }
+    return result;
+  }
+
   public List<T> get(List<Long> ids) throws Exception {
     return get(ids, e -> e);
   }
 
+  public Map<String, T> lookupAll(Collection<String> keys) {
+    return lookupAll(keys, false);
+  }
+
+  /**
+   * Looks up the entities of many keys with IN queries, split into chunks the dialect accepts. Keys the key filter
+   * rules out are not queried. Sequential chunks share one read-only session; parallel chunks each get their own,
+   * on at most as many threads as the connection pool has connections.
+   *
+   * @param keys     lookup keys
+   * @param parallel whether chunks are queried concurrently
+   * @return entities of the keys that exist, by key
+   */
+  public Map<String, T> lookupAll(Collection<String> keys, boolean parallel) {
+    Map<String, T> result = new HashMap<>();
+    forEachKeyChunk(keys, parallel, this::lookupBatch).forEach(result::putAll);
+    return result;
+  }
+
+  public Set<String> existsAll(Collection<String> keys) {
+    return existsAll(keys, false);
+  }
+
+  /**
+   * Finds which of the keys exist, reading only the key column. Chunked like {@link #lookupAll(Collection, boolean)}.
+   *
+   * @param keys     lookup keys
+   * @param parallel whether chunks are queried concurrently
+   * @return the keys that exist
+   */
+  public Set<String> existsAll(Collection<String> keys, boolean parallel) {
+    Set<String> result = new HashSet<>();
+    forEachKeyChunk(keys, parallel,
+        chunk -> Transactions.execute(dao.sessionFactory, true, dao::existingKeys, chunk)).forEach(result::addAll);
+    return result;
+  }
+
+  private <R> List<R> forEachKeyChunk(Collection<String> keys, boolean parallel, Function<List<String>, R> work) {
+    List<String> candidates = keys.stream()
+        .filter(Objects::nonNull)
+        .distinct()
+        .filter(key -> keyFilter == null || keyFilter.mightContain(key))
+        .collect(Collectors.toList());
+    if (candidates.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<List<String>> chunks = Lists.partition(candidates, inChunkSize());
+    if (!parallel || chunks.size() == 1) {
+      try {
+        return Transactions.execute(dao.sessionFactory, true,
+            all -> all.stream().map(work).collect(Collectors.toList()), chunks);
+      } catch (Exception e) {
+        throw new DaoException("Error looking up keys of " + entityClass.getSimpleName(), e);
+      }
+    }
+    List<Callable<R>> tasks = chunks.stream()
+        .map(chunk -> (Callable<R>) () -> work.apply(chunk))
+        .collect(Collectors.toList());
+    try {
+      return runAll("lookup", Math.min(chunks.size(), maxPoolSize(chunks.size())), tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DaoException("Interrupted looking up keys of " + entityClass.getSimpleName(), e);
+    } catch (ExecutionException e) {
+      throw new DaoException("Error looking up keys of " + entityClass.getSimpleName(), e.getCause());
+    }
+  }
+
   public <U> List<U> get(List<Long> ids, Function<List<T>, List<U>> handler) throws Exception {
     return Transactions.execute(dao.sessionFactory, true, dao::get, ids, handler);
   }
@@ -100,10 +401,42 @@ public class LookupDao<T> {
     return lookup(key, e -> e);
   }
 
+  /**
+   * Looks up the entity by its key. With the key cache enabled a cached id turns the query into a primary key
+   * load, which the second level cache can serve. The loaded entity's key is checked against the requested key
+   * and a stale mapping falls back to the query. Concurrent lookups of the same key are coalesced as in
+   * {@link #get(Long, Function)}.
+   */
   public <U> Optional<U> lookup(String key, Function<T, U> handler) throws Exception {
+    if (keyFilter != null && !keyFilter.mightContain(key)) {
+      return Optional.ofNullable(handler.apply(null));
+    }
+    if (coalesce(lookupFlights)) {
+      T entity = lookupFlights.execute(key, () -> load(key, e -> e).orElse(null));
+      return Optional.ofNullable(handler.apply(entity));
+    }
+    return load(key, handler);
+  }
+
+  private <U> Optional<U> load(String key, Function<T, U> handler) {
+    Long cachedId = keyCache == null ? null : keyCache.getIfPresent(key);
+    if (cachedId != null) {
+      Optional<U> hit = Transactions.<T, Long, Optional<U>>execute(dao.sessionFactory, true, dao::get, cachedId,
+          entity -> matchesKey(entity, key) ? Optional.ofNullable(handler.apply(entity)) : null);
+      if (hit != null) {
+        return hit;
+      }
+      keyCache.invalidate(key);
+    }
     DetachedCriteria criteria = DetachedCriteria.forClass(entityClass)
         .add(Restrictions.eq(keyField.getName(), key));
-    U result = Transactions.execute(dao.sessionFactory, true, dao::selectSingle, criteria, handler);
+    U result = Transactions.<T, DetachedCriteria, U>execute(dao.sessionFactory, true, dao::selectSingle, criteria,
+        entity -> {
+          if (entity != null && keyCache != null) {
+            keyCache.put(key, idOf(entity));
+          }
+          return handler.apply(entity);
+        });
     return Optional.ofNullable(result);
   }
 
@@ -134,6 +467,12 @@ public class LookupDao<T> {
   }
 
   public boolean exists(String key) throws Exception {
+    if (keyFilter != null && !keyFilter.mightContain(key)) {
+      return false;
+    }
+    if (keyCache != null) {
+      return lookup(key, Objects::nonNull).orElse(false);
+    }
     DetachedCriteria criteria = DetachedCriteria.forClass(entityClass)
         .add(Restrictions.eq(keyField.getName(), key))
         .setProjection(Projections.property(idField.getName()));
@@ -154,7 +493,7 @@ public class LookupDao<T> {
   }
 
   public <U> U save(T entity, Function<T, U> handler) throws Exception {
-    return Transactions.execute(dao.sessionFactory, false, dao::save, entity, handler);
+    return Transactions.execute(dao.sessionFactory, false, this::saveTracked, entity, handler);
   }
 
   public Optional<T> save(T entity) throws Exception {
@@ -162,13 +501,94 @@ public class LookupDao<T> {
   }
 
   public <U> List<U> save(List<T> entities, Function<List<T>, List<U>> handler) throws Exception {
-    return Transactions.execute(dao.sessionFactory, false, dao::save, entities, handler);
+    return Transactions.execute(dao.sessionFactory, false, this::saveTracked, entities, handler);
   }
 
   public List<T> save(List<T> entities) throws Exception {
     return save(entities, t -> t);
   }
 
+  /**
+   * Saves the entities for a bulk load, in flat memory: the session is flushed as a JDBC batch and cleared of the
+   * new entities every {@code batchSize} rows. Unlike {@link #save(List)} every returned entity is detached, so
+   * later changes to it are not saved and lazy associations cannot be loaded.
+   *
+   * @param entities entities to save
+   * @return the saved entities, detached, with ids assigned
+   */
+  public List<T> saveDetached(List<T> entities) {
+    try {
+      return Transactions.execute(dao.sessionFactory, false, all -> {
+        all.forEach(this::beforeWrite);
+        return dao.saveDetached(all);
+      }, entities);
+    } catch (DaoException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new DaoException("Error saving " + entityClass.getSimpleName(), e);
+    }
+  }
+
+  /**
+   * Inserts the entities with multi-row INSERT statements, bypassing the session. {@code @PrePersist} callbacks
+   * run first; no other Hibernate event or cascade does. Generated ids are set on the entities when the driver
+   * returns them.
+   *
+   * @param entities new entities
+   * @return the same entities, with ids assigned
+   */
+  public List<T> bulkInsert(List<T> entities) {
+    if (entities.isEmpty()) {
+      return entities;
+    }
+    entities.forEach(entity -> invokeCallbacks(prePersistCallbacks, entity));
+    try {
+      return Transactions.execute(dao.sessionFactory, false, all -> {
+        all.forEach(this::beforeWrite);
+        return dao.bulkInsert(all);
+      }, entities);
+    } catch (DaoException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new DaoException("Error bulk inserting " + entityClass.getSimpleName(), e);
+    }
+  }
+
+  /**
+   * Inserts the entity, or overwrites the row with the same lookup key, in a single statement. The lookup key
+   * column must have a unique constraint. Supported on H2, PostgreSQL 9.5+ and MySQL.
+   *
+   * @param entity entity to write
+   * @return rows affected as reported by the driver
+   */
+  public int upsert(T entity) {
+    return upsertAll(Collections.singletonList(entity));
+  }
+
+  /**
+   * Batch variant of {@link #upsert(Object)}: one statement per chunk of rows. Entities of keys that already
+   * exist keep the stored row's id, and the ids of all rows are set on the entities after the write.
+   *
+   * @param entities entities to write
+   * @return rows affected as reported by the driver
+   */
+  public int upsertAll(List<T> entities) {
+    if (entities.isEmpty()) {
+      return 0;
+    }
+    entities.forEach(entity -> invokeCallbacks(prePersistCallbacks, entity));
+    try {
+      return Transactions.execute(dao.sessionFactory, false, all -> {
+        all.forEach(this::beforeWrite);
+        return dao.upsert(all);
+      }, entities);
+    } catch (DaoException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new DaoException("Error upserting " + entityClass.getSimpleName(), e);
+    }
+  }
+
   public boolean updateInLock(Long id, Function<Optional<T>, T> updater) {
     return updateImpl(id, dao::getLockedForWrite, updater, dao);
   }
@@ -179,10 +599,12 @@ public class LookupDao<T> {
         if (null == entity) {
           return false;
         }
+        invalidateKey(entity);
         T newEntity = updater.apply(Optional.of(entity));
         if (null == newEntity) {
           return false;
         }
+        beforeWrite(newEntity);
         dao.update(newEntity);
         return true;
       });
@@ -191,120 +613,1005 @@ public class LookupDao<T> {
     }
   }
 
+  /**
+   * Sets the given properties with a single UPDATE statement, without loading the entity. Property names are
+   * checked against the entity mapping; ids, collections and the version cannot be set. A version, if mapped, is
+   * incremented. {@code @PreUpdate} callbacks do not run.
+   *
+   * @param id      id of the entity
+   * @param changes new values keyed by property name
+   * @return true if a row was updated
+   */
+  public boolean updateFields(Long id, Map<String, Object> changes) {
+    return updateFields(Collections.singletonList(id), changes) > 0;
+  }
+
+  /**
+   * Batch variant of {@link #updateFields(Long, Map)}: the same values are set on every entity, with one
+   * UPDATE ... IN statement per chunk of ids, in one transaction.
+   *
+   * @param ids     ids of the entities
+   * @param changes new values keyed by property name
+   * @return rows updated
+   */
+  public int updateFields(List<Long> ids, Map<String, Object> changes) {
+    validateChanges(changes);
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    List<List<Long>> chunks = Lists.partition(new ArrayList<>(new TreeSet<>(ids)), inChunkSize());
+    try {
+      return Transactions.execute(dao.sessionFactory, false, chunk -> {
+        if (changes.containsKey(keyField.getName())) {
+          trackKey((String) changes.get(keyField.getName()));
+        }
+        int rows = 0;
+        for (List<Long> idChunk : chunk) {
+          rows += dao.updateFields(idChunk, changes);
+        }
+        return rows;
+      }, chunks);
+    } catch (Exception e) {
+      throw new DaoException("Error updating " + entityClass.getSimpleName() + " fields " + changes.keySet(), e);
+    }
+  }
+
+  private void validateChanges(Map<String, Object> changes) {
+    Preconditions.checkArgument(!changes.isEmpty(), "At least one field needs to be updated");
+    changes.keySet().forEach(this::validateProperty);
+  }
+
+  private Type validateProperty(String property) {
+    EntityMetamodel metamodel = persister.getEntityMetamodel();
+    Integer index = metamodel.getPropertyIndexOrNull(property);
+    Preconditions.checkArgument(index != null, "Unknown property %s of %s", property, entityClass.getSimpleName());
+    Preconditions.checkArgument(metamodel.getPropertyUpdateability()[index]
+            && !metamodel.getPropertyTypes()[index].isCollectionType()
+            && index != metamodel.getVersionPropertyIndex(),
+        "Property %s of %s cannot be updated", property, entityClass.getSimpleName());
+    return metamodel.getPropertyTypes()[index];
+  }
+
+  public <N extends Number> Optional<N> increment(Long id, String property, Number delta) {
+    return increment(id, property, delta, null);
+  }
+
+  /**
+   * Adds delta to a numeric property with a single atomic {@code UPDATE ... SET p = p + ?}, without a row lock
+   * round trip. With a floor the update only applies if the new value is at least the floor, e.g. a zero floor
+   * keeps a balance from going negative. The new value comes back from the same statement on PostgreSQL
+   * (RETURNING) and from a read in the same transaction elsewhere; the updated row stays locked until commit.
+   *
+   * @param id       id of the entity
+   * @param property numeric property
+   * @param delta    amount to add, negative to decrement
+   * @param floor    lowest allowed new value, null for none
+   * @return the new value, empty if the entity does not exist or the floor was not met
+   */
+  public <N extends Number> Optional<N> increment(Long id, String property, Number delta, Number floor) {
+    Class<?> type = validateIncrement(property);
+    try {
+      return Optional.ofNullable(Transactions.execute(dao.sessionFactory, false, dao::increment,
+          IncrementParams.builder()
+              .ids(Collections.singletonList(id))
+              .property(property)
+              .delta(toType(delta, type))
+              .floor(floor == null ? null : toType(floor, type))
+              .build()));
+    } catch (Exception e) {
+      throw new DaoException("Error incrementing " + entityClass.getSimpleName() + "." + property + ": " + id, e);
+    }
+  }
+
+  /**
+   * Adds delta to a numeric property of every entity, with one UPDATE ... IN statement per chunk of ids, in one
+   * transaction.
+   *
+   * @param ids      ids of the entities
+   * @param property numeric property
+   * @param delta    amount to add, negative to decrement
+   * @return rows updated
+   */
+  public int increment(List<Long> ids, String property, Number delta) {
+    Number typedDelta = toType(delta, validateIncrement(property));
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    List<List<Long>> chunks = Lists.partition(new ArrayList<>(new TreeSet<>(ids)), inChunkSize());
+    try {
+      return Transactions.execute(dao.sessionFactory, false, chunk -> {
+        int rows = 0;
+        for (List<Long> idChunk : chunk) {
+          rows += dao.incrementAll(IncrementParams.builder()
+              .ids(idChunk)
+              .property(property)
+              .delta(typedDelta)
+              .build());
+        }
+        return rows;
+      }, chunks);
+    } catch (Exception e) {
+      throw new DaoException("Error incrementing " + entityClass.getSimpleName() + "." + property, e);
+    }
+  }
+
+  private Class<?> validateIncrement(String property) {
+    Class<?> type = validateProperty(property).getReturnedClass();
+    Preconditions.checkArgument(Number.class.isAssignableFrom(type),
+        "Property %s of %s is not numeric", property, entityClass.getSimpleName());
+    return type;
+  }
+
+  /**
+   * Converts a number to the property's type, as query parameters are bound with the property's type.
+   */
+  private static Number toType(Number value, Class<?> type) {
+    Preconditions.checkArgument(value != null, "Increment value cannot be null");
+    if (type.isInstance(value)) {
+      return value;
+    }
+    if (type == BigDecimal.class) {
+      return new BigDecimal(value.toString());
+    }
+    if (type == BigInteger.class) {
+      return new BigDecimal(value.toString()).toBigInteger();
+    }
+    if (type == Long.class) {
+      return value.longValue();
+    }
+    if (type == Integer.class) {
+      return value.intValue();
+    }
+    if (type == Short.class) {
+      return value.shortValue();
+    }
+    if (type == Double.class) {
+      return value.doubleValue();
+    }
+    if (type == Float.class) {
+      return value.floatValue();
+    }
+    return value;
+  }
+
   public boolean update(Long id, Function<Optional<T>, T> updater) {
     return updateImpl(id, dao::get, updater, dao);
   }
 
+  public boolean updateOptimistic(Long id, Function<Optional<T>, T> updater) {
+    return updateOptimistic(id, updater, DEFAULT_OPTIMISTIC_ATTEMPTS);
+  }
+
+  /**
+   * Updates the entity without taking a row lock. The {@code @Version} field is checked when the update is
+   * flushed; if another writer got there first the entity is re-read and the updater re-applied, up to
+   * maxAttempts times. The updater may therefore run more than once and must not have side effects.
+   *
+   * @param id          id of the entity
+   * @param updater     function producing the updated entity
+   * @param maxAttempts maximum number of attempts
+   * @return true if the entity was updated
+   */
+  public boolean updateOptimistic(Long id, Function<Optional<T>, T> updater, int maxAttempts) {
+    if (versionField == null) {
+      throw new DaoException("Entity " + entityClass.getSimpleName() + " has no @Version field");
+    }
+    int attempt = 1;
+    while (true) {
+      try {
+        return updateImpl(id, dao::get, updater, dao);
+      } catch (DaoException e) {
+        if (attempt >= maxAttempts || ManagedSessionContext.hasBind(dao.sessionFactory)
+            || !LockFailures.isOptimisticLockFailure(e)) {
+          throw e;
+        }
+        log.debug("Optimistic lock failure updating {}:{} attempt {}", entityClass.getSimpleName(), id, attempt);
+        attempt++;
+      }
+    }
+  }
+
   public int update(String query, Map<String, Object> params) throws Exception {
-    return Transactions.execute(dao.sessionFactory, false, dao::update, QueryParams.builder()
+    return Transactions.execute(dao.sessionFactory, false, this::updateQuery, QueryParams.builder()
         .params(params)
         .query(query)
         .nativeQuery(false)
         .build());
   }
 
+  /**
+   * Runs a native update. Hibernate cannot tell which tables hand-written SQL touches, so every cached entity and
+   * query is invalidated; use {@link #updateNative(String, Map, Class[])} to narrow it.
+   */
   public int updateNative(String query, Map<String, Object> params) throws Exception {
-    return Transactions.execute(dao.sessionFactory, false, dao::update, QueryParams.builder()
+    return updateNative(query, params, QueryParams.builder());
+  }
+
+  /**
+   * Runs a native update that only writes the tables of the given entities. Only their cached entities and
+   * queries are invalidated.
+   *
+   * @param query            native SQL
+   * @param params           named parameters
+   * @param affectedEntities entities whose tables the statement writes
+   * @return rows updated
+   */
+  public int updateNative(String query, Map<String, Object> params, Class<?>... affectedEntities) throws Exception {
+    Preconditions.checkArgument(affectedEntities.length > 0, "At least one affected entity is needed");
+    return updateNative(query, params, QueryParams.builder().affectedEntities(affectedEntities));
+  }
+
+  /**
+   * Runs a native update that only writes the given tables. Only cached entities and queries of those tables
+   * are invalidated.
+   *
+   * @param query          native SQL
+   * @param params         named parameters
+   * @param affectedTables tables the statement writes
+   * @return rows updated
+   */
+  public int updateNative(String query, Map<String, Object> params, String... affectedTables) throws Exception {
+    Preconditions.checkArgument(affectedTables.length > 0, "At least one affected table is needed");
+    return updateNative(query, params, QueryParams.builder().affectedTables(affectedTables));
+  }
+
+  private int updateNative(String query, Map<String, Object> params, QueryParams.QueryParamsBuilder builder) {
+    return Transactions.execute(dao.sessionFactory, false, this::updateQuery, builder
         .params(params)
         .query(query)
         .nativeQuery(true)
         .build());
   }
 
+  /**
+   * A query based update may change the key of any row. Until it commits other sessions still read the old keys,
+   * so the key cache and filter are dropped once, after the commit.
+   */
+  private int updateQuery(QueryParams queryParams) {
+    Transaction transaction = dao.sessionFactory.getCurrentSession().getTransaction();
+    transaction.registerSynchronization(new Synchronization() {
+      @Override
+      public void beforeCompletion() {
+        // Only completion matters
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        if (status == Status.STATUS_COMMITTED) {
+          invalidateKeys();
+        }
+      }
+    });
+    return dao.update(queryParams);
+  }
+
+  /**
+   * Deletes the entity with a single DELETE statement. Like the other delete methods this is a bulk statement:
+   * it does not load the entity, run lifecycle callbacks or cascade, but it does invalidate cached entities and
+   * queries of the table.
+   *
+   * @param id id of the entity
+   * @return true if a row was deleted
+   */
+  public boolean delete(Long id) {
+    return delete(Collections.singletonList(id)).getRows() > 0;
+  }
+
+  /**
+   * Deletes the entities in one transaction, with one DELETE ... IN statement per chunk of ids. Chunks stay within
+   * the dialect's IN list limit.
+   *
+   * @param ids ids of the entities
+   * @return rows deleted and time per chunk
+   */
+  public DeleteResult delete(List<Long> ids) {
+    DeleteResult result = new DeleteResult();
+    if (ids.isEmpty()) {
+      return result;
+    }
+    List<List<Long>> chunks = Lists.partition(new ArrayList<>(new TreeSet<>(ids)), inChunkSize());
+    return execute(dao::delete, chunks, deleted -> {
+      deleted.forEach(result::add);
+      return result;
+    });
+  }
+
+  /**
+   * Deletes the entity with the given lookup key.
+   *
+   * @param key lookup key
+   * @return rows deleted
+   */
+  public int deleteByKey(String key) {
+    if (keyCache != null) {
+      keyCache.invalidate(key);
+    }
+    return execute(dao::deleteByKey, key, rows -> rows);
+  }
+
+  public DeleteResult delete(DetachedCriteria criteria) {
+    return delete(criteria, inChunkSize());
+  }
+
+  /**
+   * Deletes every entity matching the criteria in chunks of ids, committing after each chunk so a purge never
+   * holds more than chunkSize row locks or undo records. Chunks are taken in id order. When called inside a bound
+   * session the chunks join that transaction and are committed together.
+   *
+   * @param criteria  entities to delete
+   * @param chunkSize rows per chunk
+   * @return rows deleted and time per chunk
+   */
+  public DeleteResult delete(DetachedCriteria criteria, int chunkSize) {
+    DeleteResult result = new DeleteResult();
+    // Project ids on a copy so the caller's criteria can be reused
+    DetachedCriteria idCriteria = SerializationUtils.clone(criteria)
+        .setProjection(Projections.property(idField.getName()));
+    long lastId = Long.MIN_VALUE;
+    while (true) {
+      long start = System.currentTimeMillis();
+      // Ids are selected and deleted in the same transaction, one transaction per chunk
+      Pair<List<Long>, Integer> chunk = execute(dao::selectIds, CriteriaParams.builder()
+          .criteria(idCriteria)
+          .limit(chunkSize)
+          .afterId(lastId)
+          .build(), ids -> Pair.of(ids, ids.isEmpty() ? 0 : dao.deleteIds(ids)));
+      List<Long> ids = chunk.getLeft();
+      if (ids.isEmpty()) {
+        break;
+      }
+      long millis = System.currentTimeMillis() - start;
+      result.add(new DeleteResult.Chunk(chunk.getRight(), millis));
+      log.debug("Deleted {} {} rows in {}ms", chunk.getRight(), entityClass.getSimpleName(), millis);
+      if (ids.size() < chunkSize) {
+        break;
+      }
+      lastId = ids.get(ids.size() - 1);
+    }
+    return result;
+  }
+
+  private <A, R, V> V execute(Function<A, R> function, A arg, Function<R, V> handler) {
+    try {
+      return Transactions.execute(dao.sessionFactory, false, function, arg, handler);
+    } catch (DaoException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new DaoException("Error deleting " + entityClass.getSimpleName(), e);
+    }
+  }
+
+  private int inChunkSize() {
+    int limit = dialect(dao.sessionFactory).getInExpressionCountLimit();
+    return limit > 0 ? Math.min(limit, DEFAULT_DELETE_CHUNK_SIZE) : DEFAULT_DELETE_CHUNK_SIZE;
+  }
+
   public LockedContext<T> lockAndGetExecutor(Long id) {
-    return new LockedContext<T>(dao.sessionFactory, dao::getLockedForWrite, id);
+    LockedContext<T> context = new LockedContext<T>(dao.sessionFactory, dao::getLockedForWrite, id);
+    context.retryMetrics = lockRetryMetrics;
+    return context;
   }
 
   public BatchLockedContext<T> lockAndGetExecutor(List<Long> ids) {
-    return new BatchLockedContext<>(dao.sessionFactory, dao::getLockedForWrite, ids, true);
+    BatchLockedContext<T> context = new BatchLockedContext<>(dao.sessionFactory, dao::getLockedForWrite, ids, true);
+    context.retryMetrics = lockRetryMetrics;
+    return context;
   }
 
   public BatchLockedContext<T> lockAndGetExecutor(Supplier<List<Long>> supplier) {
     return lockAndGetExecutor(supplier.get());
   }
 
+  /**
+   * Claims up to batchSize rows matching the criteria with {@code SELECT ... FOR UPDATE SKIP LOCKED}. Rows
+   * already locked by other workers are skipped instead of waited on, so several workers can drain the same
+   * table concurrently. The claimed rows stay locked until the returned context finishes executing.
+   * On dialects without SKIP LOCKED support this degrades to a plain {@code FOR UPDATE}.
+   *
+   * @param criteria  criteria selecting claimable rows
+   * @param batchSize maximum number of rows to claim
+   * @return context over the claimed rows, which may be empty
+   */
+  public BatchLockedContext<T> claim(DetachedCriteria criteria, int batchSize) {
+    CriteriaParams params = CriteriaParams.builder()
+        .criteria(criteria)
+        .limit(batchSize)
+        .build();
+    BatchLockedContext<T> context = new BatchLockedContext<>(dao.sessionFactory, () -> dao.claim(params));
+    context.retryMetrics = lockRetryMetrics;
+    return context;
+  }
+
   public BatchLockedContext<T> saveAndGetExecutor(List<T> entities) {
-    return new BatchLockedContext<>(dao.sessionFactory, dao::save, entities);
+    return new BatchLockedContext<>(dao.sessionFactory, this::saveTracked, entities);
   }
 
   public LockedContext<T> saveAndGetExecutor(T entity) {
-    return new LockedContext<>(dao.sessionFactory, dao::save, entity);
+    return new LockedContext<>(dao.sessionFactory, this::saveTracked, entity);
+  }
+
+  /**
+   * Returns a context that works through a {@link StatelessSession}. Entities read or written through it are never
+   * attached to a persistence context, so memory use stays flat regardless of how many rows are processed.
+   *
+   * @return stateless context for this entity
+   */
+  public StatelessContext<T> stateless() {
+    return new StatelessContext<>(dao.sessionFactory, entityClass,
+        entity -> invokeCallbacks(prePersistCallbacks, entity),
+        entity -> invokeCallbacks(preUpdateCallbacks, entity),
+        this::beforeWrite);
+  }
+
+  public <N extends Number> N sum(final DetachedCriteria criteria, final String propertyName) throws Exception {
+    return Transactions.execute(dao.sessionFactory, true, dao::sum, AggregateParams
+    .builder()
+    .criteria(criteria)
+    .propertyName(propertyName)
+    .build());
+  }
+
+  public long count(DetachedCriteria criteria) {
+    try {
+      criteria.setProjection(Projections.property(idField.getName()));
+      return Transactions.execute(dao.sessionFactory, true, dao::count, criteria);
+    } catch (Exception e) {
+      throw new DaoException(e);
+    }
+  }
+
+  public List<T> select(DetachedCriteria detachedCriteria, int limit, int offset) throws Exception {
+    return select(detachedCriteria, limit, offset, ts -> ts);
+  }
+
+  public List<T> select(final String query, final Map<String, Object> params, final boolean nativeQuery) throws Exception {
+    QueryParams queryParams = QueryParams.builder()
+        .query(query)
+        .params(params)
+        .nativeQuery(nativeQuery)
+        .build();
+    return Transactions.execute(dao.sessionFactory, true, dao::select, queryParams);
+  }
+
+  /**
+   * Selects only the given properties of the entities matching the criteria and maps every row to a DTO or record
+   * through its constructor. No entity is hydrated or registered in the session. The constructor must take the
+   * properties in the given order; primitive and wrapper parameters both match. Property types are resolved the
+   * way the criteria resolves them, so properties of aliases created with {@code createAlias} can be selected.
+   *
+   * @param criteria   criteria to execute; it is not modified
+   * @param dto        result type
+   * @param properties properties to select, nested component properties and alias properties in dotted form
+   * @return one DTO per row
+   */
+  public <R> List<R> selectProjected(DetachedCriteria criteria, Class<R> dto, String... properties) {
+    Preconditions.checkArgument(properties.length > 0, "At least one property needs to be selected");
+    ProjectionList projection = Projections.projectionList();
+    for (String property : properties) {
+      projection.add(Projections.property(property));
+    }
+    Class<?>[] types = projectedClasses(criteria, projection);
+    try {
+      return Transactions.execute(dao.sessionFactory, true, dao::selectProjected, ProjectionParams.builder()
+          .criteria(criteria)
+          .projection(projection)
+          .transformer(new ConstructorResultTransformer<>(dto, types))
+          .build());
+    } catch (Exception e) {
+      throw new DaoException("Error selecting " + dto.getSimpleName() + " from " + entityClass.getSimpleName(), e);
+    }
+  }
+
+  /**
+   * Runs an HQL query selecting individual columns, e.g. {@code select e.id, e.name from Entity e}, and maps every
+   * row to a DTO or record through the constructor that matches the types the query selects. The constructor is
+   * picked from the query, not from the values of a row, so null columns do not affect the choice.
+   *
+   * @param query  HQL query
+   * @param params named parameters, may be null
+   * @param dto    result type
+   * @return one DTO per row
+   */
+  public <R> List<R> selectProjected(String query, Map<String, Object> params, Class<R> dto) {
+    try {
+      return Transactions.execute(dao.sessionFactory, true, dao::selectProjected, ProjectionParams.builder()
+          .query(query)
+          .params(params)
+          .resultClass(dto)
+          .build());
+    } catch (Exception e) {
+      throw new DaoException("Error selecting " + dto.getSimpleName() + " with " + query, e);
+    }
+  }
+
+  private Class<?>[] projectedClasses(DetachedCriteria criteria, Projection projection) {
+    // The translator resolves aliases and component paths without a session, so a copy of the criteria will do
+    CriteriaImpl executable = (CriteriaImpl) SerializationUtils.clone(criteria).getExecutableCriteria(null);
+    executable.setProjection(projection);
+    try {
+      return returnedClasses(new CriteriaQueryTranslator(dao.sessionFactory.unwrap(SessionFactoryImplementor.class),
+          executable, executable.getEntityOrClassName(), CriteriaQueryTranslator.ROOT_SQL_ALIAS)
+          .getProjectedTypes());
+    } catch (QueryException e) {
+      throw new IllegalArgumentException("Unknown property of " + entityClass.getSimpleName() + ": "
+          + e.getMessage(), e);
+    }
+  }
+
+  private static Class<?>[] returnedClasses(Type[] types) {
+    return Arrays.stream(types).map(Type::getReturnedClass).toArray(Class<?>[]::new);
+  }
+
+  public <U> List<U> select(DetachedCriteria detachedCriteria, int limit, int offset, Function<List<T>, List<U>> handler) throws Exception {
+    CriteriaParams params = CriteriaParams.builder()
+        .criteria(detachedCriteria)
+        .limit(limit)
+        .offset(offset)
+        .build();
+    try {
+      return Transactions.execute(dao.sessionFactory, true, dao::select, params, handler);
+    } catch (Exception e) {
+      throw new DaoException(e);
+    }
+  }
+
+  public <U> List<U> selectPaginated(DetachedCriteria criteria, Function<List<T>, List<U>> handler, int pageSize) {
+    return selectPaginated(criteria, handler, pageSize, PagingMode.OFFSET);
+  }
+
+  /**
+   * Reads every entity matching the criteria page by page in one read-only session.
+   *
+   * @param criteria   criteria to execute; with {@link PagingMode#KEYSET} its orders are replaced by the id order
+   * @param handler    applied to the complete result
+   * @param pageSize   rows per query
+   * @param pagingMode how pages are addressed
+   * @return handled result
+   */
+  public <U> List<U> selectPaginated(DetachedCriteria criteria, Function<List<T>, List<U>> handler, int pageSize,
+                                     PagingMode pagingMode) {
+    Preconditions.checkArgument(pageSize > 0, "Page size must be positive");
+    try {
+      CriteriaParams params = CriteriaParams.builder()
+          .criteria(criteria)
+          .limit(pageSize)
+          .pagingMode(pagingMode)
+          .build();
+      return Transactions.execute(dao.sessionFactory, true, dao::selectPaginated, params, handler);
+    } catch (Exception e) {
+      throw new DaoException(e);
+    }
+  }
+
+  public List<T> select(DetachedCriteria detachedCriteria) throws Exception {
+    try {
+      return Transactions.execute(dao.sessionFactory, true, dao::select, detachedCriteria, t -> t);
+    } catch (Exception e) {
+      throw new DaoException(e);
+    }
+  }
+
+  public <U> List<U> select(DetachedCriteria detachedCriteria, Function<List<T>, List<U>> handler) throws Exception {
+    try {
+      return Transactions.execute(dao.sessionFactory, true, dao::select, detachedCriteria, handler);
+    } catch (Exception e) {
+      throw new DaoException(e);
+    }
+  }
+
+  public <U> Optional<U> selectSingle(DetachedCriteria detachedCriteria, Function<T, U> handler) throws Exception {
+    U result = Transactions.execute(dao.sessionFactory, true, dao::selectSingle, detachedCriteria, handler);
+    return Optional.ofNullable(result);
+  }
+
+  /**
+   * Reads one page of the entities matching the criteria, seeking past the given id instead of skipping rows, so
+   * every page costs the same however deep it is. Pages are ordered by id and any orders of the criteria are
+   * ignored. Rows inserted or deleted between calls never shift the following pages.
+   *
+   * @param criteria criteria to execute; it is not modified
+   * @param afterId  cursor returned with the previous page, null for the first page
+   * @param size     rows per page
+   * @return page of entities with the cursor of the next page
+   */
+  public Page<T> page(DetachedCriteria criteria, Long afterId, int size) {
+    Preconditions.checkArgument(size > 0, "Page size must be positive");
+    try {
+      // One extra row tells whether there is a next page without another query
+      List<T> rows = Transactions.execute(dao.sessionFactory, true, dao::selectAfter, CriteriaParams.builder()
+          .criteria(criteria)
+          .afterId(afterId)
+          .limit(size + 1)
+          .build());
+      if (rows.size() <= size) {
+        return new Page<>(rows, null);
+      }
+      List<T> items = new ArrayList<>(rows.subList(0, size));
+      return new Page<>(items, idOf(items.get(size - 1)));
+    } catch (Exception e) {
+      throw new DaoException("Error reading page of " + entityClass.getSimpleName() + " after " + afterId, e);
+    }
+  }
+
+  public ScanProgress parallelScan(DetachedCriteria criteria, int partitions, Consumer<List<T>> consumer) {
+    ScanProgress progress = new ScanProgress();
+    parallelScan(criteria, partitions, consumer, progress);
+    return progress;
+  }
+
+  /**
+   * Scans every entity matching the criteria on several threads. The id range of the matching rows is split into
+   * equal partitions which are read concurrently, each in keyset chunks with a read-only session per chunk. The
+   * number of threads is capped by the connection pool size. The consumer receives detached chunks in id order
+   * within a partition, and is called from several threads at once, so it must be thread safe. The first failure
+   * cancels the partitions that have not finished.
+   *
+   * @param criteria   criteria to execute; it is not modified and its orders are ignored
+   * @param partitions number of id ranges
+   * @param consumer   called with every chunk of entities
+   * @param progress   updated as partitions complete, can be polled from another thread
+   */
+  public void parallelScan(DetachedCriteria criteria, int partitions, Consumer<List<T>> consumer,
+                           ScanProgress progress) {
+    Preconditions.checkArgument(partitions > 0, "Partitions must be positive");
+    Object[] range;
+    try {
+      range = Transactions.execute(dao.sessionFactory, true, dao::idRange, criteria);
+    } catch (Exception e) {
+      throw new DaoException("Error reading id range of " + entityClass.getSimpleName(), e);
+    }
+    if (range[0] == null) {
+      progress.start(0);
+      return;
+    }
+    long min = ((Number) range[0]).longValue();
+    long max = ((Number) range[1]).longValue();
+    long width = (max - min) / partitions + 1;
+    List<Pair<Long, Long>> ranges = new ArrayList<>();
+    for (long from = min; from <= max && from >= min; from += width) {
+      ranges.add(Pair.of(from, Math.min(max, from + width - 1)));
+    }
+    progress.start(ranges.size());
+    List<Callable<ScanProgress.Partition>> tasks = ranges.stream()
+        .map(partition -> (Callable<ScanProgress.Partition>) () -> scanPartition(criteria, partition.getLeft(),
+            partition.getRight(), consumer, progress))
+        .collect(Collectors.toList());
+    try {
+      runAll("scan", Math.min(ranges.size(), maxPoolSize(ranges.size())), tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DaoException("Interrupted scanning " + entityClass.getSimpleName(), e);
+    } catch (ExecutionException e) {
+      throw new DaoException("Error scanning " + entityClass.getSimpleName(), e.getCause());
+    }
+  }
+
+  private ScanProgress.Partition scanPartition(DetachedCriteria criteria, long fromId, long toId,
+                                               Consumer<List<T>> consumer, ScanProgress progress) throws Exception {
+    long start = System.currentTimeMillis();
+    long rows = 0;
+    DetachedCriteria bounded = SerializationUtils.clone(criteria)
+        .add(Restrictions.le(idField.getName(), toId));
+    Long afterId = fromId - 1;
+    while (!Thread.currentThread().isInterrupted()) {
+      List<T> chunk = Transactions.execute(dao.sessionFactory, true, dao::selectAfter, CriteriaParams.builder()
+          .criteria(bounded)
+          .afterId(afterId)
+          .limit(KEY_SCAN_FETCH_SIZE)
+          .build());
+      if (chunk.isEmpty()) {
+        break;
+      }
+      consumer.accept(chunk);
+      rows += chunk.size();
+      progress.addRows(chunk.size());
+      if (chunk.size() < KEY_SCAN_FETCH_SIZE) {
+        break;
+      }
+      afterId = idOf(chunk.get(chunk.size() - 1));
+    }
+    ScanProgress.Partition partition = new ScanProgress.Partition(fromId, toId, rows,
+        System.currentTimeMillis() - start);
+    progress.complete(partition);
+    log.debug("Scanned {} {} rows with ids {}..{} in {}ms", rows, entityClass.getSimpleName(), fromId, toId,
+        partition.getMillis());
+    return partition;
+  }
+
+  /**
+   * Runs the tasks on a pool of their own and returns their results in task order. Results are taken as tasks
+   * complete, so the first failure interrupts every running task at once rather than after the tasks submitted
+   * before it have finished.
+   */
+  private <R> List<R> runAll(String purpose, int threads, List<Callable<R>> tasks)
+      throws InterruptedException, ExecutionException {
+    ExecutorService executor = executor(purpose, threads);
+    try {
+      CompletionService<R> completion = new ExecutorCompletionService<>(executor);
+      Map<Future<R>, Integer> order = new HashMap<>();
+      for (int i = 0; i < tasks.size(); i++) {
+        order.put(completion.submit(tasks.get(i)), i);
+      }
+      List<R> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+      for (int i = 0; i < tasks.size(); i++) {
+        Future<R> done = completion.take();
+        results.set(order.get(done), done.get());
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private ExecutorService executor(String purpose, int threads) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+        .setNameFormat("janus-" + purpose + "-" + entityClass.getSimpleName() + "-%d")
+        .setDaemon(true)
+        .build());
+  }
+
+  private int maxPoolSize(int fallback) {
+    Object size = dao.sessionFactory.getProperties().get("hibernate.hikari.maximumPoolSize");
+    return size == null ? fallback : Math.max(1, Integer.parseInt(size.toString()));
+  }
+
+  /**
+   * Streams the results of the criteria through a forward only cursor in a session of its own, so exports of any
+   * size run in flat memory. Entities are read only and the session is cleared every fetchSize rows; an entity is
+   * detached once the next chunk is fetched, but lazy associations can be loaded until then. The stream holds a
+   * connection and a transaction until it is closed, so it must be used in a try-with-resources block.
+   * <p>
+   * Use {@link StatelessContext#stream(DetachedCriteria, int)} instead when lazy associations are not needed:
+   * it skips the persistence context altogether, so there is no per row bookkeeping to clear.
+   *
+   * @param criteria  criteria to execute; it is not modified
+   * @param fetchSize JDBC fetch size of the cursor and number of rows between session clears
+   * @return lazily populated stream of entities
+   */
+  public Stream<T> stream(DetachedCriteria criteria, int fetchSize) {
+    Preconditions.checkArgument(fetchSize > 0, "Fetch size must be positive");
+    Session session = dao.sessionFactory.openSession();
+    session.setDefaultReadOnly(true);
+    session.setHibernateFlushMode(FlushMode.MANUAL);
+    // The cursor settings and the private session go on a copy so the caller's criteria can be reused
+    return CursorStream.open(session, entityClass, opened -> SerializationUtils.clone(criteria)
+        .getExecutableCriteria(opened)
+        .setFetchSize(fetchSize)
+        .setCacheMode(CacheMode.IGNORE)
+        .scroll(ScrollMode.FORWARD_ONLY), fetchSize, Session::clear);
+  }
+
+  /**
+   * Streams the results of the criteria to the given consumer and releases the cursor when done.
+   *
+   * @param criteria  criteria to execute
+   * @param fetchSize JDBC fetch size of the cursor and number of rows between session clears
+   * @param consumer  consumer invoked for every row
+   */
+  public void stream(DetachedCriteria criteria, int fetchSize, Consumer<T> consumer) {
+    try (Stream<T> stream = stream(criteria, fetchSize)) {
+      stream.forEach(consumer);
+    }
+  }
+
+  private static Dialect dialect(SessionFactory sessionFactory) {
+    return sessionFactory.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect();
+  }
+
+  /**
+   * Work inside a bound session must see that session's own changes, so it is never coalesced.
+   */
+  private boolean coalesce(SingleFlight<?, T> flights) {
+    return flights != null && !ManagedSessionContext.hasBind(dao.sessionFactory);
+  }
+
+  private Long idOf(T entity) {
+    try {
+      return (Long) idField.get(entity);
+    } catch (IllegalAccessException e) {
+      throw new DaoException("Error reading id of " + entityClass.getSimpleName(), e);
+    }
+  }
+
+  private String keyOf(T entity) {
+    try {
+      return (String) keyField.get(entity);
+    } catch (IllegalAccessException e) {
+      throw new DaoException("Error reading lookup key of " + entityClass.getSimpleName(), e);
+    }
+  }
+
+  private boolean matchesKey(T entity, String key) {
+    return entity != null && key.equals(keyOf(entity));
+  }
+
+  private T saveTracked(T entity) {
+    beforeWrite(entity);
+    return dao.save(entity);
+  }
+
+  private List<T> saveTracked(List<T> entities) {
+    entities.forEach(this::beforeWrite);
+    return dao.save(entities);
+  }
+
+  /**
+   * Keeps the key cache and key filter consistent with an entity about to be written. Must be called inside the
+   * write's transaction.
+   */
+  private void beforeWrite(T entity) {
+    beforeWrite(entity, dao.sessionFactory.getCurrentSession().getTransaction());
+  }
+
+  private void beforeWrite(T entity, Transaction transaction) {
+    invalidateKey(entity);
+    if (entity != null) {
+      trackKey(keyOf(entity), transaction);
+    }
+  }
+
+  private void trackKey(String key) {
+    trackKey(key, dao.sessionFactory.getCurrentSession().getTransaction());
+  }
+
+  /**
+   * Adds the key to the filter before the write commits, so a concurrent check can never miss it, and keeps it in
+   * flight until the given transaction completes, so a filter rebuild running meanwhile keeps it as well.
+   */
+  private void trackKey(String key, Transaction transaction) {
+    KeyMembershipFilter filter = keyFilters.get(entityClass);
+    if (filter == null || key == null) {
+      return;
+    }
+    filter.put(key);
+    if (!transaction.isActive()) {
+      filter.written(key);
+      return;
+    }
+    transaction.registerSynchronization(new Synchronization() {
+      @Override
+      public void beforeCompletion() {
+        // Only completion matters
+      }
+
+      @Override
+      public void afterCompletion(int status) {
+        filter.written(key);
+      }
+    });
+  }
+
+  private void loadKeys(Consumer<String> sink) {
+    StatelessSession session = dao.sessionFactory.openStatelessSession();
+    try {
+      session.beginTransaction();
+      session.doWork(connection -> connection.setReadOnly(true));
+      ScrollableResults results = session.createQuery("select e." + keyField.getName() + " from "
+              + entityClass.getName() + " e")
+          .setFetchSize(KEY_SCAN_FETCH_SIZE)
+          .scroll(ScrollMode.FORWARD_ONLY);
+      try {
+        while (results.next()) {
+          sink.accept((String) results.get(0));
+        }
+      } finally {
+        results.close();
+      }
+      session.getTransaction().commit();
+    } catch (Exception e) {
+      if (session.getTransaction().getStatus() == TransactionStatus.ACTIVE) {
+        session.getTransaction().rollback();
+      }
+      throw new DaoException("Error loading keys of " + entityClass.getSimpleName(), e);
+    } finally {
+      session.close();
+    }
+  }
+
+  private void invalidateKey(T entity) {
+    if (keyCache != null && entity != null) {
+      String key = keyOf(entity);
+      if (key != null) {
+        keyCache.invalidate(key);
+      }
+    }
   }
 
-  public <N extends Number> N sum(final DetachedCriteria criteria, final String propertyName) throws Exception {
-    return Transactions.execute(dao.sessionFactory, true, dao::sum, AggregateParams
-    .builder()
-    .criteria(criteria)
-    .propertyName(propertyName)
-    .build());
+  /**
+   * Drops every cached key mapping and the key filter. Called after query based updates commit, since they may
+   * change keys of any row, and should be called after writes made outside this DAO.
+   */
+  public void invalidateKeys() {
+    if (keyCache != null) {
+      keyCache.invalidateAll();
+    }
+    KeyMembershipFilter filter = keyFilters.get(entityClass);
+    if (filter != null) {
+      filter.invalidate();
+    }
   }
 
-  public long count(DetachedCriteria criteria) {
-    try {
-      criteria.setProjection(Projections.property(idField.getName()));
-      return Transactions.execute(dao.sessionFactory, true, dao::count, criteria);
-    } catch (Exception e) {
-      throw new DaoException(e);
+  private void invokeCallbacks(List<Method> callbacks, T entity) {
+    for (Method callback : callbacks) {
+      try {
+        callback.invoke(entity);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        throw new DaoException("Error invoking entity callback " + callback.getName(), e);
+      }
     }
   }
 
-  public List<T> select(DetachedCriteria detachedCriteria, int limit, int offset) throws Exception {
-    return select(detachedCriteria, limit, offset, ts -> ts);
+  /**
+   * Counters of lock acquisition retries made by contexts created through this DAO.
+   *
+   * @return retry counters
+   */
+  public RetryMetrics getLockRetryMetrics() {
+    return lockRetryMetrics;
   }
 
-  public List<T> select(final String query, final Map<String, Object> params, final boolean nativeQuery) throws Exception {
-    QueryParams queryParams = QueryParams.builder()
-        .query(query)
-        .params(params)
-        .nativeQuery(nativeQuery)
-        .build();
-    return Transactions.execute(dao.sessionFactory, true, dao::select, queryParams);
+  /**
+   * Hit and miss counters of the key to id cache. Empty when the cache is disabled.
+   *
+   * @return key cache statistics
+   */
+  public CacheStats getKeyCacheStats() {
+    return keyCache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : keyCache.stats();
   }
 
-  public <U> List<U> select(DetachedCriteria detachedCriteria, int limit, int offset, Function<List<T>, List<U>> handler) throws Exception {
-    CriteriaParams params = CriteriaParams.builder()
-        .criteria(detachedCriteria)
-        .limit(limit)
-        .offset(offset)
-        .build();
-    try {
-      return Transactions.execute(dao.sessionFactory, true, dao::select, params, handler);
-    } catch (Exception e) {
-      throw new DaoException(e);
+  /**
+   * Hit and miss counters of this DAO's query cache region. Cached results are dropped whenever a table they
+   * read from is written through Hibernate, including {@link #update(String, Map)} and
+   * {@link #updateNative(String, Map)}.
+   *
+   * @return query cache statistics, empty when the query cache is off
+   */
+  public Optional<CacheStats> getQueryCacheStats() {
+    if (queryCacheRegion == null || !dao.sessionFactory.getStatistics().isStatisticsEnabled()) {
+      return Optional.empty();
     }
+    CacheRegionStatistics statistics = dao.sessionFactory.getStatistics().getQueryRegionStatistics(queryCacheRegion);
+    if (statistics == null) {
+      return Optional.of(new CacheStats(0, 0, 0, 0, 0, 0));
+    }
+    return Optional.of(new CacheStats(statistics.getHitCount(), statistics.getMissCount(), 0, 0, 0, 0));
   }
 
-  public <U> List<U> selectPaginated(DetachedCriteria criteria, Function<List<T>, List<U>> handler, int pageSize) {
-    try {
-      CriteriaParams params = CriteriaParams.builder()
-          .criteria(criteria)
-          .limit(pageSize)
-          .build();
-      return Transactions.execute(dao.sessionFactory, true, dao::selectPaginated, params, handler);
-    } catch (Exception e) {
-      throw new DaoException(e);
-    }
+  /**
+   * Load and coalesce counters of concurrent get(id) calls.
+   *
+   * @return single flight counters, empty when disabled
+   */
+  public Optional<SingleFlight<Long, T>> getGetFlights() {
+    return Optional.ofNullable(getFlights);
   }
 
-  public List<T> select(DetachedCriteria detachedCriteria) throws Exception {
-    try {
-      return Transactions.execute(dao.sessionFactory, true, dao::select, detachedCriteria, t -> t);
-    } catch (Exception e) {
-      throw new DaoException(e);
-    }
+  /**
+   * Load and coalesce counters of concurrent lookup(key) calls.
+   *
+   * @return single flight counters, empty when disabled
+   */
+  public Optional<SingleFlight<String, T>> getLookupFlights() {
+    return Optional.ofNullable(lookupFlights);
   }
 
-  public <U> List<U> select(DetachedCriteria detachedCriteria, Function<List<T>, List<U>> handler) throws Exception {
-    try {
-      return Transactions.execute(dao.sessionFactory, true, dao::select, detachedCriteria, handler);
-    } catch (Exception e) {
-      throw new DaoException(e);
-    }
+  @VisibleForTesting
+  BatchLoader<Long, T> idBatchLoader() {
+    return idLoader;
   }
 
-  public <U> Optional<U> selectSingle(DetachedCriteria detachedCriteria, Function<T, U> handler) throws Exception {
-    U result = Transactions.execute(dao.sessionFactory, true, dao::selectSingle, detachedCriteria, handler);
-    return Optional.ofNullable(result);
+  @VisibleForTesting
+  BatchLoader<String, T> keyBatchLoader() {
+    return keyLoader;
+  }
+
+  /**
+   * Bloom filter answering definite misses of {@link #exists(String)} and {@link #lookup(String)}.
+   *
+   * @return the key filter, empty when disabled
+   */
+  public Optional<KeyMembershipFilter> getKeyFilter() {
+    return Optional.ofNullable(keyFilter);
   }
 
   protected Field getKeyField() {
@@ -315,6 +1622,22 @@ public class LookupDao<T> {
     return this.idField;
   }
 
+  protected Field getVersionField() {
+    return this.versionField;
+  }
+
+  /**
+   * Scheduler shared by DAOs created without one, so no DAO starts threads of its own. Its threads are daemons.
+   */
+  private static final class BackgroundScheduler {
+
+    private static final ScheduledExecutorService INSTANCE = Executors.newScheduledThreadPool(2,
+        new ThreadFactoryBuilder()
+            .setNameFormat("janus-background-%d")
+            .setDaemon(true)
+            .build());
+  }
+
   @Data
   @Builder
   private static class CriteriaParams {
@@ -328,6 +1651,25 @@ public class LookupDao<T> {
     private int offset = -1;
 
     private String fetchProfile;
+
+    private Long afterId;
+
+    @Builder.Default
+    private PagingMode pagingMode = PagingMode.OFFSET;
+  }
+
+  /**
+   * How {@link #selectPaginated} addresses pages.
+   */
+  public enum PagingMode {
+    /**
+     * LIMIT/OFFSET in the order of the criteria. Every page re-reads the rows it skips.
+     */
+    OFFSET,
+    /**
+     * {@code WHERE id > :lastId ORDER BY id LIMIT n}. Every page is an index seek.
+     */
+    KEYSET
   }
 
   @Data
@@ -339,6 +1681,40 @@ public class LookupDao<T> {
     private Map<String, Object> params;
 
     private boolean nativeQuery;
+
+    private Class<?>[] affectedEntities;
+
+    private String[] affectedTables;
+  }
+
+  @Data
+  @Builder
+  private static class ProjectionParams {
+
+    private DetachedCriteria criteria;
+
+    private Projection projection;
+
+    private String query;
+
+    private Map<String, Object> params;
+
+    private ResultTransformer transformer;
+
+    private Class<?> resultClass;
+  }
+
+  @Data
+  @Builder
+  private static class IncrementParams {
+
+    private List<Long> ids;
+
+    private String property;
+
+    private Number delta;
+
+    private Number floor;
   }
 
   @Data
@@ -360,6 +1736,12 @@ public class LookupDao<T> {
     private T entity;
     private Long key;
     private List<Function<T, Void>> operations = Lists.newArrayList();
+    private RetryPolicy retryPolicy;
+    private RetryMetrics retryMetrics = new RetryMetrics();
+    @Getter(AccessLevel.NONE)
+    private boolean lockAcquired;
+    @Getter(AccessLevel.NONE)
+    private boolean joined;
 
     public LockedContext(SessionFactory sessionFactory, Function<Long, T> getter, Long key) {
       this.sessionFactory = sessionFactory;
@@ -437,6 +1819,18 @@ public class LookupDao<T> {
       });
     }
 
+    /**
+     * Retries the whole context, in a fresh transaction, when the row lock cannot be acquired.
+     * Failures raised after the lock was taken, or while joined to an outer transaction, are never retried.
+     *
+     * @param retryPolicy backoff and limits to apply
+     * @return this context
+     */
+    public LockedContext<T> withRetry(RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
     public LockedContext<T> filter(Predicate<T> predicate) {
       return filter(predicate, new IllegalArgumentException("Predicate check failed"));
     }
@@ -452,10 +1846,21 @@ public class LookupDao<T> {
     }
 
     public T execute() {
+      if (retryPolicy == null) {
+        return executeOnce();
+      }
+      return retryPolicy.execute(this::executeOnce,
+          e -> !lockAcquired && !joined && LockFailures.isLockFailure(e, dialect(sessionFactory)), retryMetrics);
+    }
+
+    private T executeOnce() {
       TransactionHandler transactionHandler = new TransactionHandler(sessionFactory, false);
       transactionHandler.beforeStart();
+      joined = transactionHandler.isJoined();
+      lockAcquired = false;
       try {
         T result = generateEntity();
+        lockAcquired = true;
         operations
             .forEach(operation -> operation.apply(result));
         return result;
@@ -495,13 +1900,24 @@ public class LookupDao<T> {
 
   @Getter
   public static class BatchLockedContext<T> {
+    private static final int DEFAULT_LOCK_CHUNK_SIZE = 500;
+
     private final SessionFactory sessionFactory;
     private final Mode mode;
     private Function<List<Long>, List<T>> function;
     private Function<List<T>, List<T>> saver;
+    private Supplier<List<T>> claimer;
     private List<T> entity;
     private List<Long> keys;
     private List<Function<List<T>, Void>> operations = Lists.newArrayList();
+    private RetryPolicy retryPolicy;
+    private RetryMetrics retryMetrics = new RetryMetrics();
+    @Getter(AccessLevel.NONE)
+    private boolean lockAcquired;
+    @Getter(AccessLevel.NONE)
+    private boolean joined;
+    private int lockChunkSize = DEFAULT_LOCK_CHUNK_SIZE;
+    private long lockWaitMillis;
 
     public BatchLockedContext(SessionFactory sessionFactory, Function<List<Long>, List<T>> getter, List<Long> keys, boolean read) {
       this.sessionFactory = sessionFactory;
@@ -517,6 +1933,12 @@ public class LookupDao<T> {
       this.mode = Mode.INSERT;
     }
 
+    public BatchLockedContext(SessionFactory sessionFactory, Supplier<List<T>> claimer) {
+      this.sessionFactory = sessionFactory;
+      this.claimer = claimer;
+      this.mode = Mode.CLAIM;
+    }
+
     public BatchLockedContext<T> mutate(Mutator<T> mutator) {
       return apply(parent -> {
         mutator.mutator(parent);
@@ -559,11 +1981,47 @@ public class LookupDao<T> {
       });
     }
 
+    /**
+     * Retries the whole context, in a fresh transaction, when the row locks cannot be acquired.
+     * Failures raised after the locks were taken, or while joined to an outer transaction, are never retried.
+     *
+     * @param retryPolicy backoff and limits to apply
+     * @return this context
+     */
+    public BatchLockedContext<T> withRetry(RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * Sets how many rows are locked per statement. Ids are always de-duplicated and locked in ascending order,
+     * so overlapping batches acquire their locks in the same global order and cannot deadlock each other.
+     *
+     * @param lockChunkSize maximum ids per lock statement
+     * @return this context
+     */
+    public BatchLockedContext<T> withLockChunkSize(int lockChunkSize) {
+      Preconditions.checkArgument(lockChunkSize > 0, "Lock chunk size must be positive");
+      this.lockChunkSize = lockChunkSize;
+      return this;
+    }
+
     public List<T> execute() {
+      if (retryPolicy == null) {
+        return executeOnce();
+      }
+      return retryPolicy.execute(this::executeOnce,
+          e -> !lockAcquired && !joined && LockFailures.isLockFailure(e, dialect(sessionFactory)), retryMetrics);
+    }
+
+    private List<T> executeOnce() {
       TransactionHandler transactionHandler = new TransactionHandler(sessionFactory, false);
       transactionHandler.beforeStart();
+      joined = transactionHandler.isJoined();
+      lockAcquired = false;
       try {
         List<T> result = generateEntity();
+        lockAcquired = true;
         operations
             .forEach(operation -> operation.apply(result));
         return result;
@@ -579,14 +2037,14 @@ public class LookupDao<T> {
       List<T> result = null;
       switch (mode) {
         case READ:
-          result = function.apply(keys);
-          if (result == null) {
-            throw new DaoException("Entity doesn't exist for keys: " + keys);
-          }
+          result = lockInOrder();
           break;
         case INSERT:
           result = saver.apply(entity);
           break;
+        case CLAIM:
+          result = claimer.get();
+          break;
         default:
           break;
 
@@ -594,7 +2052,26 @@ public class LookupDao<T> {
       return result;
     }
 
-    enum Mode {READ, INSERT}
+    private List<T> lockInOrder() {
+      List<Long> ordered = new ArrayList<>(new TreeSet<>(keys));
+      List<T> result = new ArrayList<>(ordered.size());
+      long start = System.nanoTime();
+      try {
+        for (List<Long> chunk : Lists.partition(ordered, lockChunkSize)) {
+          List<T> locked = function.apply(chunk);
+          if (locked == null) {
+            throw new DaoException("Entity doesn't exist for keys: " + chunk);
+          }
+          result.addAll(locked);
+        }
+      } finally {
+        lockWaitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.debug("Waited {}ms locking {} rows in chunks of {}", lockWaitMillis, ordered.size(), lockChunkSize);
+      }
+      return result;
+    }
+
+    enum Mode {READ, INSERT, CLAIM}
 
     @FunctionalInterface
     public interface Mutator<T> {
@@ -602,6 +2079,118 @@ public class LookupDao<T> {
     }
   }
 
+  public static class StatelessContext<T> {
+
+    private final SessionFactory sessionFactory;
+    private final Class<T> entityClass;
+    private final Consumer<T> beforeInsert;
+    private final Consumer<T> beforeUpdate;
+    private final BiConsumer<T, Transaction> beforeWrite;
+
+    public StatelessContext(SessionFactory sessionFactory, Class<T> entityClass,
+                            Consumer<T> beforeInsert, Consumer<T> beforeUpdate) {
+      this(sessionFactory, entityClass, beforeInsert, beforeUpdate, (entity, transaction) -> { });
+    }
+
+    /**
+     * @param beforeWrite called with every entity and the stateless transaction before the entity is written, e.g.
+     *                    to keep key caches and filters consistent
+     */
+    public StatelessContext(SessionFactory sessionFactory, Class<T> entityClass, Consumer<T> beforeInsert,
+                            Consumer<T> beforeUpdate, BiConsumer<T, Transaction> beforeWrite) {
+      this.sessionFactory = sessionFactory;
+      this.entityClass = entityClass;
+      this.beforeInsert = beforeInsert;
+      this.beforeUpdate = beforeUpdate;
+      this.beforeWrite = beforeWrite;
+    }
+
+    /**
+     * Inserts all entities in a single transaction. {@code @PrePersist} callbacks declared on the entity are
+     * invoked before each insert; identifiers are assigned on the passed instances.
+     *
+     * @param entities entities to insert
+     * @return the inserted entities
+     */
+    public List<T> insertAll(List<T> entities) {
+      return inTransaction(session -> {
+        for (T entity : entities) {
+          beforeInsert.accept(entity);
+          beforeWrite.accept(entity, session.getTransaction());
+          session.insert(entity);
+        }
+        return entities;
+      });
+    }
+
+    /**
+     * Updates all entities in a single transaction. {@code @PreUpdate} callbacks declared on the entity are
+     * invoked before each update.
+     *
+     * @param entities detached entities carrying the new state
+     * @return number of entities updated
+     */
+    public int updateAll(List<T> entities) {
+      return inTransaction(session -> {
+        for (T entity : entities) {
+          beforeUpdate.accept(entity);
+          beforeWrite.accept(entity, session.getTransaction());
+          session.update(entity);
+        }
+        return entities.size();
+      });
+    }
+
+    /**
+     * Streams the results of the criteria through a forward only cursor. The stream holds a connection until it
+     * is closed, so it must be used in a try-with-resources block. Entities are detached as they are read, so
+     * lazy associations cannot be loaded; {@link LookupDao#stream(DetachedCriteria, int)} keeps them loadable.
+     *
+     * @param criteria  criteria to execute
+     * @param fetchSize JDBC fetch size hint for the cursor
+     * @return lazily populated stream of detached entities
+     */
+    public Stream<T> stream(DetachedCriteria criteria, int fetchSize) {
+      return CursorStream.open(sessionFactory.openStatelessSession(), entityClass, session -> {
+        session.doWork(connection -> connection.setReadOnly(true));
+        // getExecutableCriteria only binds stateful sessions, so the copy is bound to the stateless one afterwards
+        CriteriaImpl executable = (CriteriaImpl) SerializationUtils.clone(criteria).getExecutableCriteria(null);
+        executable.setSession((SharedSessionContractImplementor) session);
+        executable.setFetchSize(fetchSize);
+        return executable.scroll(ScrollMode.FORWARD_ONLY);
+      }, fetchSize, null);
+    }
+
+    /**
+     * Streams the results of the criteria to the given consumer and releases the cursor when done.
+     *
+     * @param criteria  criteria to execute
+     * @param fetchSize JDBC fetch size hint for the cursor
+     * @param consumer  consumer invoked for every row
+     */
+    public void stream(DetachedCriteria criteria, int fetchSize, Consumer<T> consumer) {
+      try (Stream<T> stream = stream(criteria, fetchSize)) {
+        stream.forEach(consumer);
+      }
+    }
+
+    private <R> R inTransaction(Function<StatelessSession, R> work) {
+      try (StatelessSession session = sessionFactory.openStatelessSession()) {
+        Transaction transaction = session.beginTransaction();
+        try {
+          R result = work.apply(session);
+          transaction.commit();
+          return result;
+        } catch (Exception e) {
+          if (transaction.getStatus() == TransactionStatus.ACTIVE) {
+            transaction.rollback();
+          }
+          throw new DaoException("Error writing " + entityClass.getSimpleName(), e);
+        }
+      }
+    }
+  }
+
   private final class InternalDao extends AbstractDao<T> {
 
     private final SessionFactory sessionFactory;
@@ -612,7 +2201,7 @@ public class LookupDao<T> {
     }
 
     T get(Long id) {
-      return getLocked(id, LockMode.READ);
+      return getLocked(id, LockMode.NONE);
     }
 
     T getLocked(Long id, LockMode lockMode) {
@@ -620,12 +2209,15 @@ public class LookupDao<T> {
     }
 
     List<T> get(List<Long> ids) {
-      return getLocked(ids, LockMode.READ);
+      return getLocked(ids, LockMode.NONE);
     }
 
     List<T> getLocked(List<Long> ids, LockMode lockMode) {
       MultiIdentifierLoadAccess<T> multiGet = currentSession().byMultipleIds(entityClass);
-      return multiGet.with(new LockOptions(lockMode)).multiLoad(ids);
+      // Loads a locked chunk in one statement, but never with more ids than the dialect allows in an IN list
+      return multiGet.with(new LockOptions(lockMode))
+          .withBatchSize(Math.max(1, Math.min(ids.size(), inChunkSize())))
+          .multiLoad(ids);
     }
 
     T getLockedForWrite(Long id) {
@@ -636,10 +2228,22 @@ public class LookupDao<T> {
       return getLocked(ids, LockMode.UPGRADE_NOWAIT);
     }
 
+    List<T> claim(CriteriaParams criteriaParams) {
+      // The lock mode and limit go on a copy so the caller's criteria can be reused for plain reads
+      Criteria exeCriteria = SerializationUtils.clone(criteriaParams.criteria).getExecutableCriteria(currentSession());
+      exeCriteria.setLockMode(LockMode.UPGRADE_SKIPLOCKED);
+      exeCriteria.setMaxResults(criteriaParams.limit);
+      return list(exeCriteria);
+    }
+
     T save(T entity) {
       return persist(entity);
     }
 
+    /**
+     * Saves or updates every entity in the current session. The entities stay managed and are flushed with
+     * the transaction.
+     */
     List<T> save(List<T> entities) {
       List<T> saved = new ArrayList<>();
       for (T e : entities) {
@@ -648,28 +2252,177 @@ public class LookupDao<T> {
       return saved;
     }
 
+    /**
+     * Saves the entities, flushing every JDBC batch and detaching the entities it added so the persistence
+     * context stays bounded. Entities that were already managed, e.g. by an outer unit of work, stay attached.
+     */
+    List<T> saveDetached(List<T> entities) {
+      int flushSize = Math.max(1, jdbcBatchSize);
+      List<T> saved = new ArrayList<>();
+      List<T> added = new ArrayList<>();
+      for (T e : entities) {
+        boolean managed = currentSession().contains(e);
+        saved.add(persist(e));
+        if (!managed) {
+          added.add(e);
+        }
+        if (saved.size() % flushSize == 0) {
+          flushAndEvict(added);
+        }
+      }
+      flushAndEvict(added);
+      return saved;
+    }
+
+    private void flushAndEvict(List<T> added) {
+      currentSession().flush();
+      added.forEach(currentSession()::evict);
+      added.clear();
+    }
+
+    List<T> bulkInsert(List<T> entities) {
+      return bulkInserter.insert(currentSession(), entities);
+    }
+
+    int upsert(List<T> entities) {
+      return bulkInserter.upsert(currentSession(), entities);
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Long> selectIds(CriteriaParams criteriaParams) {
+      return keyset(criteriaParams).setCacheable(false).list();
+    }
+
+    int deleteIds(List<Long> ids) {
+      return currentSession().createQuery("delete from " + entityClass.getName()
+              + " where " + idField.getName() + " in (:ids)")
+          .setParameterList("ids", ids)
+          .executeUpdate();
+    }
+
+    List<DeleteResult.Chunk> delete(List<List<Long>> chunks) {
+      List<DeleteResult.Chunk> deleted = new ArrayList<>();
+      for (List<Long> chunk : chunks) {
+        long start = System.currentTimeMillis();
+        deleted.add(new DeleteResult.Chunk(deleteIds(chunk), System.currentTimeMillis() - start));
+      }
+      return deleted;
+    }
+
+    int deleteByKey(String key) {
+      return currentSession().createQuery("delete from " + entityClass.getName()
+              + " where " + keyField.getName() + " = :key")
+          .setParameter("key", key)
+          .executeUpdate();
+    }
+
+    /**
+     * A managed entity is written by dirty checking at flush, so entities mapped with {@code @DynamicUpdate} only
+     * write the columns that changed. A detached copy is merged onto the managed instance first.
+     */
     void update(T entity) {
-      currentSession().evict(entity); //Detach .. otherwise update is a no-op
-      currentSession().update(entity);
+      if (!currentSession().contains(entity)) {
+        currentSession().merge(entity);
+      }
+    }
+
+    int incrementAll(IncrementParams params) {
+      Query<?> query = currentSession().createQuery("update " + (persister.isVersioned() ? "versioned " : "")
+          + entityClass.getName() + " set " + params.property + " = " + params.property + " + :delta"
+          + " where " + idField.getName() + " in (:ids)"
+          + (params.floor == null ? "" : " and " + params.property + " + :delta >= :floor"));
+      query.setParameter("delta", params.delta);
+      if (params.floor != null) {
+        query.setParameter("floor", params.floor);
+      }
+      return query.setParameterList("ids", params.ids).executeUpdate();
+    }
+
+    @SuppressWarnings("unchecked")
+    <N extends Number> N increment(IncrementParams params) {
+      if (dialect(sessionFactory) instanceof PostgreSQL82Dialect) {
+        return (N) incrementReturning(params);
+      }
+      if (incrementAll(params) == 0) {
+        return null;
+      }
+      return (N) currentSession().createQuery("select " + params.property + " from " + entityClass.getName()
+              + " where " + idField.getName() + " = :id")
+          .setParameter("id", params.ids.get(0))
+          .uniqueResult();
+    }
+
+    private Object incrementReturning(IncrementParams params) {
+      AbstractEntityPersister entityPersister = (AbstractEntityPersister) persister;
+      String column = entityPersister.getPropertyColumnNames(params.property)[0];
+      String version = entityPersister.isVersioned()
+          ? entityPersister.getPropertyColumnNames(entityPersister.getVersionProperty())[0] : null;
+      NativeQuery<?> query = currentSession().createNativeQuery("update " + entityPersister.getTableName()
+              + " set " + column + " = " + column + " + :delta"
+              + (version == null ? "" : ", " + version + " = " + version + " + 1")
+              + " where " + entityPersister.getIdentifierColumnNames()[0] + " = :id"
+              + (params.floor == null ? "" : " and " + column + " + :delta >= :floor")
+              + " returning " + column)
+          .addScalar(column, entityPersister.getPropertyType(params.property));
+      query.setParameter("delta", params.delta);
+      query.setParameter("id", params.ids.get(0));
+      if (params.floor != null) {
+        query.setParameter("floor", params.floor);
+      }
+      List<?> result = query.getResultList();
+      // A returning update runs as a select, so caches of the table are invalidated explicitly
+      SessionImplementor session = currentSession().unwrap(SessionImplementor.class);
+      session.getActionQueue().addAction(new BulkOperationCleanupAction(session, entityPersister));
+      return result.isEmpty() ? null : result.get(0);
+    }
+
+    int updateFields(List<Long> ids, Map<String, Object> changes) {
+      List<String> assignments = new ArrayList<>();
+      List<Object> values = new ArrayList<>();
+      changes.forEach((property, value) -> {
+        assignments.add(property + " = :p" + values.size());
+        values.add(value);
+      });
+      Query<?> query = currentSession().createQuery("update " + (persister.isVersioned() ? "versioned " : "")
+          + entityClass.getName() + " set " + String.join(", ", assignments)
+          + " where " + idField.getName() + " in (:ids)");
+      for (int i = 0; i < values.size(); i++) {
+        query.setParameter("p" + i, values.get(i));
+      }
+      return query.setParameterList("ids", ids).executeUpdate();
     }
 
     long update(CriteriaUpdate<T> criteriaUpdate) {
       return currentSession().createQuery(criteriaUpdate).executeUpdate();
     }
 
+    /**
+     * Marks the criteria as cacheable in the DAO's query cache region, if configured.
+     */
+    private Criteria executable(DetachedCriteria criteria) {
+      Criteria exeCriteria = criteria.getExecutableCriteria(currentSession());
+      if (queryCacheRegion != null) {
+        exeCriteria.setCacheable(true).setCacheRegion(queryCacheRegion);
+      }
+      return exeCriteria;
+    }
+
     List<T> select(DetachedCriteria criteria) {
-      return list(criteria.getExecutableCriteria(currentSession()));
+      return list(executable(criteria));
     }
 
     public List<T> select(final QueryParams queryParams) {
       Query<T> tQuery = currentSession().createQuery(queryParams.query, entityClass);
       if (queryParams.params != null)
         queryParams.params.forEach(tQuery::setParameter);
+      if (queryCacheRegion != null) {
+        tQuery.setCacheable(true).setCacheRegion(queryCacheRegion);
+      }
       return tQuery.getResultList();
     }
 
     public List<T> select(CriteriaParams criteriaParams) {
-      Criteria exeCriteria = criteriaParams.criteria.getExecutableCriteria(currentSession());
+      Criteria exeCriteria = executable(criteriaParams.criteria);
       if (criteriaParams.limit != -1)
         exeCriteria.setMaxResults(criteriaParams.limit);
       if (criteriaParams.offset != -1)
@@ -684,42 +2437,123 @@ public class LookupDao<T> {
       List<T> result = new ArrayList<>();
       boolean run = true;
       int offset = 0;
+      Long afterId = null;
       while (run) {
-        Criteria exeCriteria = criteriaParams.criteria.getExecutableCriteria(currentSession());
-        exeCriteria.setMaxResults(criteriaParams.limit);
-        exeCriteria.setFirstResult(offset);
-        List<T> batchResult = list(exeCriteria);
+        List<T> batchResult;
+        if (criteriaParams.pagingMode == PagingMode.KEYSET) {
+          batchResult = selectAfter(CriteriaParams.builder()
+              .criteria(criteriaParams.criteria)
+              .afterId(afterId)
+              .limit(criteriaParams.limit)
+              .build());
+          if (!batchResult.isEmpty()) {
+            afterId = idOf(batchResult.get(batchResult.size() - 1));
+          }
+        } else {
+          Criteria exeCriteria = executable(criteriaParams.criteria);
+          exeCriteria.setMaxResults(criteriaParams.limit);
+          exeCriteria.setFirstResult(offset);
+          batchResult = list(exeCriteria);
+          offset += criteriaParams.limit;
+        }
         result.addAll(batchResult);
-        offset += criteriaParams.limit;
-        run = !batchResult.isEmpty();
+        // A short page is the last one
+        run = batchResult.size() == criteriaParams.limit;
       }
       return result;
     }
 
+    Object[] idRange(DetachedCriteria criteria) {
+      return (Object[]) copy(criteria)
+          .setCacheable(false)
+          .setProjection(Projections.projectionList()
+              .add(Projections.min(idField.getName()))
+              .add(Projections.max(idField.getName())))
+          .uniqueResult();
+    }
+
+    @SuppressWarnings({"unchecked", "deprecation"})
+    <R> List<R> selectProjected(ProjectionParams projectionParams) {
+      if (projectionParams.criteria != null) {
+        return executable(SerializationUtils.clone(projectionParams.criteria))
+            .setProjection(projectionParams.projection)
+            .setResultTransformer(projectionParams.transformer)
+            .list();
+      }
+      Query<?> query = currentSession().createQuery(projectionParams.query);
+      if (projectionParams.params != null) {
+        projectionParams.params.forEach(query::setParameter);
+      }
+      if (queryCacheRegion != null) {
+        query.setCacheable(true).setCacheRegion(queryCacheRegion);
+      }
+      return (List<R>) query.setResultTransformer(new ConstructorResultTransformer<>(projectionParams.resultClass,
+          returnedClasses(query.getReturnTypes()))).getResultList();
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> existingKeys(List<String> keys) {
+      return executable(DetachedCriteria.forClass(entityClass)
+          .add(Restrictions.in(keyField.getName(), keys))
+          .setProjection(Projections.distinct(Projections.property(keyField.getName()))))
+          .list();
+    }
+
+    List<T> selectAfter(CriteriaParams criteriaParams) {
+      return list(keyset(criteriaParams));
+    }
+
+    /**
+     * Copy of the criteria restricted to ids after the cursor, in id order.
+     */
+    private Criteria keyset(CriteriaParams criteriaParams) {
+      Criteria exeCriteria = copy(criteriaParams.criteria);
+      if (criteriaParams.afterId != null) {
+        exeCriteria.add(Restrictions.gt(idField.getName(), criteriaParams.afterId));
+      }
+      return exeCriteria
+          .addOrder(Order.asc(idField.getName()))
+          .setMaxResults(criteriaParams.limit);
+    }
+
+    /**
+     * Copy of the criteria without its orders, which keeps the caller's criteria free of the restrictions added for
+     * each query. A first result left on it by an earlier select is reset.
+     */
+    private Criteria copy(DetachedCriteria criteria) {
+      Criteria exeCriteria = executable(SerializationUtils.clone(criteria));
+      Iterator<CriteriaImpl.OrderEntry> orders = ((CriteriaImpl) exeCriteria).iterateOrderings();
+      while (orders.hasNext()) {
+        orders.next();
+        orders.remove();
+      }
+      return exeCriteria.setFirstResult(0);
+    }
+
     public T selectSingle(DetachedCriteria criteria) {
-      return uniqueResult(criteria.getExecutableCriteria(currentSession()));
+      return uniqueResult(executable(criteria));
     }
 
     long count(DetachedCriteria criteria) {
-      return (long) criteria.getExecutableCriteria(currentSession())
+      return (long) executable(criteria)
           .setProjection(Projections.rowCount())
           .uniqueResult();
     }
 
     <N extends Number> N sum(AggregateParams aggregateParams) {
-      return (N) aggregateParams.criteria.getExecutableCriteria(currentSession())
+      return (N) executable(aggregateParams.criteria)
           .setProjection(Projections.sum(aggregateParams.propertyName))
           .uniqueResult();
     }
 
     <N extends Number> N max(AggregateParams aggregateParams) {
-      return (N) aggregateParams.criteria.getExecutableCriteria(currentSession())
+      return (N) executable(aggregateParams.criteria)
           .setProjection(Projections.max(aggregateParams.propertyName))
           .uniqueResult();
     }
 
     <N extends Number> N min(AggregateParams aggregateParams) {
-      return (N) aggregateParams.criteria.getExecutableCriteria(currentSession())
+      return (N) executable(aggregateParams.criteria)
           .setProjection(Projections.min(aggregateParams.propertyName))
           .uniqueResult();
     }
@@ -727,7 +2561,19 @@ public class LookupDao<T> {
     public int update(QueryParams updateParams) {
       Query<T> tQuery;
       if (updateParams.nativeQuery) {
-        tQuery = currentSession().createSQLQuery(updateParams.query);
+        // Without synchronized entities or tables Hibernate invalidates every cache region
+        NativeQuery<T> nativeQuery = currentSession().createNativeQuery(updateParams.query);
+        if (updateParams.affectedEntities != null) {
+          for (Class<?> affected : updateParams.affectedEntities) {
+            nativeQuery.addSynchronizedEntityClass(affected);
+          }
+        }
+        if (updateParams.affectedTables != null) {
+          for (String table : updateParams.affectedTables) {
+            nativeQuery.addSynchronizedQuerySpace(table);
+          }
+        }
+        tQuery = nativeQuery;
       } else {
         tQuery = currentSession().createQuery(updateParams.query);
       }
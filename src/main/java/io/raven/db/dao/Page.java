@@ -0,0 +1,29 @@
+package io.raven.db.dao;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+
+/**
+ * A page of entities read by {@link LookupDao#page}, in id order. The cursor is the id of the last entity on the
+ * page and is passed back as afterId to read the next page.
+ *
+ * @param <T> entity type
+ */
+@Data
+@AllArgsConstructor
+public class Page<T> {
+
+  private List<T> items;
+
+  /**
+   * Cursor for the next page, null if this is the last page.
+   */
+  private Long next;
+
+  public boolean hasNext() {
+    return next != null;
+  }
+}
@@ -0,0 +1,78 @@
+package io.raven.db.dao;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Progress of a {@link LookupDao#parallelScan}. It is updated by the scanning threads and can be polled from any
+ * thread while the scan runs.
+ */
+public class ScanProgress {
+
+  private final AtomicLong rows = new AtomicLong();
+
+  private final List<Partition> completed = new ArrayList<>();
+
+  private volatile int partitions;
+
+  private volatile boolean started;
+
+  void start(int partitions) {
+    this.partitions = partitions;
+    this.started = true;
+  }
+
+  void addRows(int count) {
+    rows.addAndGet(count);
+  }
+
+  synchronized void complete(Partition partition) {
+    completed.add(partition);
+  }
+
+  /**
+   * @return number of id ranges the scan was split into, 0 until the range is known
+   */
+  public int getPartitions() {
+    return partitions;
+  }
+
+  /**
+   * @return rows handed to the consumer so far
+   */
+  public long getRows() {
+    return rows.get();
+  }
+
+  /**
+   * @return partitions finished so far, in completion order
+   */
+  public synchronized List<Partition> getCompleted() {
+    return new ArrayList<>(completed);
+  }
+
+  /**
+   * @return true once every partition has finished; a scan of an empty range is done as soon as it starts
+   */
+  public synchronized boolean isDone() {
+    return started && completed.size() == partitions;
+  }
+
+  @Data
+  @AllArgsConstructor
+  public static class Partition {
+
+    private long fromId;
+
+    private long toId;
+
+    private long rows;
+
+    private long millis;
+  }
+}
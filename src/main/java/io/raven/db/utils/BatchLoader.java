@@ -0,0 +1,113 @@
+package io.raven.db.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+
+/**
+ * Collects individual loads made from any thread and runs them as one batch once the window has passed or the
+ * batch is full. Loads of a key already waiting in the current batch share its future.
+ * <p>
+ * Futures are completed on the scheduler thread; dependent work should use the async variants of the
+ * {@link CompletableFuture} methods so it does not hold up the next batch.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BatchLoader<K, V> {
+
+  private final Function<List<K>, Map<K, V>> batchFunction;
+
+  private final long windowMillis;
+
+  private final int maxBatchSize;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong loads = new AtomicLong();
+
+  private final AtomicLong batches = new AtomicLong();
+
+  private Map<K, CompletableFuture<V>> pending = new LinkedHashMap<>();
+
+  /**
+   * @param batchFunction loads a batch of keys; keys missing from the result complete with null
+   * @param windowMillis  how long the first load of a batch waits for others to join
+   * @param maxBatchSize  batch size that is dispatched without waiting for the window
+   * @param scheduler     runs the batches
+   */
+  public BatchLoader(Function<List<K>, Map<K, V>> batchFunction, long windowMillis, int maxBatchSize,
+                     ScheduledExecutorService scheduler) {
+    this.batchFunction = batchFunction;
+    this.windowMillis = windowMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Adds the key to the current batch.
+   *
+   * @param key key to load
+   * @return future completed with the loaded value, or null if there is none
+   */
+  public CompletableFuture<V> load(K key) {
+    CompletableFuture<V> future;
+    int size;
+    synchronized (this) {
+      future = pending.get(key);
+      if (future != null) {
+        return future;
+      }
+      future = new CompletableFuture<>();
+      pending.put(key, future);
+      size = pending.size();
+    }
+    loads.incrementAndGet();
+    if (size >= maxBatchSize) {
+      scheduler.execute(this::dispatch);
+    } else if (size == 1) {
+      scheduler.schedule(this::dispatch, windowMillis, TimeUnit.MILLISECONDS);
+    }
+    return future;
+  }
+
+  private void dispatch() {
+    Map<K, CompletableFuture<V>> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new LinkedHashMap<>();
+    }
+    batches.incrementAndGet();
+    try {
+      Map<K, V> result = batchFunction.apply(new ArrayList<>(batch.keySet()));
+      batch.forEach((key, future) -> future.complete(result.get(key)));
+    } catch (Throwable e) {
+      // Every waiting caller must see the failure, including an Error
+      batch.values().forEach(future -> future.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * @return number of distinct keys loaded
+   */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * @return number of batches run
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+}
@@ -0,0 +1,97 @@
+package io.raven.db.utils;
+
+import com.google.common.collect.ImmutableSet;
+import org.hibernate.StaleStateException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.dialect.SQLServerDialect;
+import org.hibernate.dialect.lock.OptimisticEntityLockException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.hibernate.exception.LockTimeoutException;
+
+import java.sql.SQLException;
+import java.util.Set;
+
+
+/**
+ * Classifies exceptions raised by pessimistic and optimistic locking, so that they can be retried.
+ */
+public final class LockFailures {
+
+  private static final Set<String> POSTGRES_STATES = ImmutableSet.of("55P03", "40P01");
+  private static final Set<Integer> MYSQL_CODES = ImmutableSet.of(1205, 1213, 3572);
+  private static final Set<Integer> ORACLE_CODES = ImmutableSet.of(54, 60, 30006);
+  private static final Set<Integer> SQLSERVER_CODES = ImmutableSet.of(1205, 1222);
+  private static final Set<Integer> H2_CODES = ImmutableSet.of(50200, 40001);
+
+  private LockFailures() {
+  }
+
+  /**
+   * Checks whether the exception, or any of its causes, signals a lock that could not be acquired.
+   *
+   * @param e       exception to check
+   * @param dialect dialect in use, for driver specific error codes
+   * @return true if the failure is a lock conflict
+   */
+  public static boolean isLockFailure(Throwable e, Dialect dialect) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof LockAcquisitionException
+          || t instanceof LockTimeoutException
+          || t instanceof org.hibernate.PessimisticLockException
+          || t instanceof javax.persistence.PessimisticLockException
+          || t instanceof javax.persistence.LockTimeoutException) {
+        return true;
+      }
+      if (t instanceof SQLException && isLockFailure((SQLException) t, dialect)) {
+        return true;
+      }
+      if (t.getCause() == t) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether the exception, or any of its causes, signals a failed optimistic version check.
+   *
+   * @param e exception to check
+   * @return true if the entity was concurrently modified
+   */
+  public static boolean isOptimisticLockFailure(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof StaleStateException
+          || t instanceof OptimisticEntityLockException
+          || t instanceof javax.persistence.OptimisticLockException) {
+        return true;
+      }
+      if (t.getCause() == t) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isLockFailure(SQLException e, Dialect dialect) {
+    if (dialect instanceof PostgreSQL81Dialect) {
+      return POSTGRES_STATES.contains(e.getSQLState());
+    }
+    if (dialect instanceof MySQLDialect) {
+      return MYSQL_CODES.contains(e.getErrorCode());
+    }
+    if (dialect instanceof Oracle8iDialect) {
+      return ORACLE_CODES.contains(e.getErrorCode());
+    }
+    if (dialect instanceof SQLServerDialect) {
+      return SQLSERVER_CODES.contains(e.getErrorCode());
+    }
+    if (dialect instanceof H2Dialect) {
+      return H2_CODES.contains(e.getErrorCode());
+    }
+    return false;
+  }
+}
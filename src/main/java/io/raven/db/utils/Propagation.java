@@ -0,0 +1,24 @@
+package io.raven.db.utils;
+
+/**
+ * Controls how a unit of work behaves when a session is already bound to the current thread.
+ */
+public enum Propagation {
+
+  /**
+   * Reuse the session and transaction bound to the current thread, or start a new one if there is none.
+   * The outer owner of the transaction is responsible for commit and rollback.
+   */
+  JOIN_EXISTING,
+
+  /**
+   * Always open a new session and transaction. Any session bound to the current thread is suspended
+   * and restored once the new transaction completes.
+   */
+  REQUIRES_NEW,
+
+  /**
+   * Reuse the session bound to the current thread and fail if there is none.
+   */
+  MANDATORY
+}
@@ -0,0 +1,46 @@
+package io.raven.db.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters maintained by {@link RetryPolicy}.
+ */
+public class RetryMetrics {
+
+  private final AtomicLong retries = new AtomicLong();
+
+  private final AtomicLong exhausted = new AtomicLong();
+
+  private final AtomicLong waitedMillis = new AtomicLong();
+
+  void retried(long backoffMillis) {
+    retries.incrementAndGet();
+    waitedMillis.addAndGet(backoffMillis);
+  }
+
+  void exhausted() {
+    exhausted.incrementAndGet();
+  }
+
+  /**
+   * @return number of retries performed
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return number of operations that failed after running out of attempts or time
+   */
+  public long getExhausted() {
+    return exhausted.get();
+  }
+
+  /**
+   * @return total time spent backing off between attempts
+   */
+  public long getWaitedMillis() {
+    return waitedMillis.get();
+  }
+}
@@ -0,0 +1,90 @@
+package io.raven.db.utils;
+
+import io.raven.db.dao.DaoException;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+
+/**
+ * Retry policy with exponential backoff and jitter, bounded by both an attempt count and a total deadline.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class RetryPolicy {
+
+  @Builder.Default
+  private int maxAttempts = 3;
+
+  @Builder.Default
+  private long initialBackoffMillis = 20;
+
+  @Builder.Default
+  private long maxBackoffMillis = 1000;
+
+  @Builder.Default
+  private double multiplier = 2.0;
+
+  /**
+   * Fraction of each backoff that is randomised, between 0 (no jitter) and 1 (full jitter).
+   */
+  @Builder.Default
+  private double jitter = 0.5;
+
+  @Builder.Default
+  private long deadlineMillis = 5000;
+
+  /**
+   * Runs the action, retrying failures accepted by the predicate until attempts or the deadline run out.
+   *
+   * @param action    action to run
+   * @param retryable decides whether a failure may be retried
+   * @param metrics   counters updated with retries and time spent backing off
+   * @param <R>       result type
+   * @return result of the first successful attempt
+   */
+  public <R> R execute(Supplier<R> action, Predicate<RuntimeException> retryable, RetryMetrics metrics) {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    int attempt = 1;
+    while (true) {
+      try {
+        return action.get();
+      } catch (RuntimeException e) {
+        if (!retryable.test(e)) {
+          throw e;
+        }
+        long backoff = backoffMillis(attempt);
+        if (attempt >= maxAttempts || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff) > deadline) {
+          metrics.exhausted();
+          throw e;
+        }
+        sleep(backoff, e);
+        metrics.retried(backoff);
+        attempt++;
+      }
+    }
+  }
+
+  long backoffMillis(int attempt) {
+    double exponential = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(multiplier, attempt - 1.0));
+    double randomised = exponential * jitter * ThreadLocalRandom.current().nextDouble();
+    return (long) (exponential - randomised);
+  }
+
+  private static void sleep(long millis, RuntimeException cause) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new DaoException("Interrupted while waiting to retry", cause);
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package io.raven.db.utils;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheStats;
+import io.raven.db.cache.InMemoryRegionFactory;
+import io.raven.db.config.CacheConfig;
 import io.raven.db.config.JanusConfig;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.SessionFactory;
@@ -8,8 +11,11 @@ import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
 import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cache.spi.access.AccessType;
 import org.hibernate.cfg.Environment;
 
+import javax.persistence.SharedCacheMode;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +36,8 @@ public class SessionFactoryUtil {
 
   private final List<Class<?>> entities;
 
+  private InMemoryRegionFactory regionFactory;
+
   private SessionFactoryUtil(final JanusConfig janusConfig, final List<Class<?>> entities) {
     this.janusConfig = janusConfig;
     this.entities = entities;
@@ -81,9 +89,14 @@ public class SessionFactoryUtil {
     settings.put("hibernate.hikari.autoCommit", "false");
     //Set Max age for connections
     settings.put("hibernate.hikari.maxLifetime", String.valueOf(janusConfig.getMaxAge()));
-    settings.put("hibernate.temp.use_jdbc_metadata_defaults", "false");
-    settings.put(Environment.USE_QUERY_CACHE, "false");
-    settings.put("hibernate.cache.provider_class", "org.hibernate.cache.NoCacheProvider");
+    // Driver metadata tells Hibernate the driver supports batch updates; without it JDBC batching is switched off.
+    // Reading it means the database must be reachable when the session factory is built.
+    settings.put("hibernate.temp.use_jdbc_metadata_defaults", "true");
+    settings.put(Environment.STATEMENT_BATCH_SIZE, String.valueOf(janusConfig.getBatchSize()));
+    settings.put(Environment.ORDER_INSERTS, String.valueOf(janusConfig.isOrderInserts()));
+    settings.put(Environment.ORDER_UPDATES, String.valueOf(janusConfig.isOrderUpdates()));
+    settings.put(Environment.BATCH_VERSIONED_DATA, "true");
+    configureCache(settings);
     settings.put("hibernate.cache.use_minimal_puts", "false");
     settings.put("max_fetch_depth", "3");
 
@@ -94,11 +107,45 @@ public class SessionFactoryUtil {
     Metadata metadata = sources.getMetadataBuilder()
         .build();
     sessionFactory = metadata.getSessionFactoryBuilder()
-        .applyStatisticsSupport(false)
+        // Statistics give the query cache hit ratio, counting only results that were still up to date
+        .applyStatisticsSupport(isQueryCacheEnabled())
         .build();
     return sessionFactory;
   }
 
+  private void configureCache(Map<String, Object> settings) {
+    CacheConfig cacheConfig = janusConfig.getCacheConfig();
+    if (Objects.isNull(cacheConfig) || !cacheConfig.isEnabled()) {
+      settings.put(Environment.USE_SECOND_LEVEL_CACHE, "false");
+      settings.put(Environment.USE_QUERY_CACHE, "false");
+      return;
+    }
+    settings.put(Environment.USE_SECOND_LEVEL_CACHE, "true");
+    settings.put(Environment.JPA_SHARED_CACHE_MODE, SharedCacheMode.ENABLE_SELECTIVE.name());
+    settings.put(Environment.DEFAULT_CACHE_CONCURRENCY_STRATEGY, AccessType.READ_WRITE.getExternalName());
+    settings.put(Environment.USE_QUERY_CACHE, String.valueOf(cacheConfig.isQueryCache()));
+    if (Strings.isNullOrEmpty(cacheConfig.getRegionFactory())) {
+      regionFactory = new InMemoryRegionFactory(cacheConfig);
+      settings.put(Environment.CACHE_REGION_FACTORY, regionFactory);
+    } else {
+      settings.put(Environment.CACHE_REGION_FACTORY, cacheConfig.getRegionFactory());
+    }
+  }
+
+  private boolean isQueryCacheEnabled() {
+    CacheConfig cacheConfig = janusConfig.getCacheConfig();
+    return Objects.nonNull(cacheConfig) && cacheConfig.isEnabled() && cacheConfig.isQueryCache();
+  }
+
+  /**
+   * Per region hit/miss statistics of the bundled in-memory second level cache.
+   *
+   * @return statistics keyed by region name, empty when the in-memory cache is not in use
+   */
+  public Map<String, CacheStats> getCacheStatistics() {
+    return Objects.isNull(regionFactory) ? Collections.emptyMap() : regionFactory.getStatistics();
+  }
+
   public void close() {
     sessionFactory.close();
   }
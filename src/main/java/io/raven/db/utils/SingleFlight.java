@@ -0,0 +1,85 @@
+package io.raven.db.utils;
+
+import io.raven.db.dao.DaoException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller runs the load; callers arriving while it is in
+ * flight wait for and share its result instead of running their own. Nothing is kept once the load completes, so
+ * a later call always loads again.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  private final AtomicLong loads = new AtomicLong();
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Runs the loader for the key unless a load for the same key is already running, in which case its result is
+   * returned. A failure of the shared load is rethrown to every waiting caller.
+   *
+   * @param key    key being loaded
+   * @param loader load to run
+   * @return loaded value
+   */
+  public V execute(K key, Supplier<V> loader) {
+    CompletableFuture<V> flight = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalesced.incrementAndGet();
+      return await(existing);
+    }
+    loads.incrementAndGet();
+    try {
+      V value = loader.get();
+      flight.complete(value);
+      return value;
+    } catch (RuntimeException | Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  private V await(CompletableFuture<V> flight) {
+    try {
+      return flight.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new DaoException(cause);
+    }
+  }
+
+  /**
+   * @return number of loads actually run
+   */
+  public long getLoads() {
+    return loads.get();
+  }
+
+  /**
+   * @return number of calls that shared another caller's load
+   */
+  public long getCoalesced() {
+    return coalesced.get();
+  }
+}
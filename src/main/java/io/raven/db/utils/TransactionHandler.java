@@ -5,6 +5,7 @@ import org.hibernate.FlushMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.TransactionException;
 import org.hibernate.context.internal.ManagedSessionContext;
 import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.resource.transaction.spi.TransactionStatus;
@@ -18,31 +19,78 @@ public class TransactionHandler {
   private final SessionFactory sessionFactory;
   // Context variables
   private Session session;
+  private Session suspended;
+  private boolean joined;
   private final boolean readOnly;
+  private final Propagation propagation;
 
   public TransactionHandler(SessionFactory sessionFactory, boolean readOnly) {
+    this(sessionFactory, readOnly, Propagation.JOIN_EXISTING);
+  }
+
+  public TransactionHandler(SessionFactory sessionFactory, boolean readOnly, Propagation propagation) {
     this.sessionFactory = sessionFactory;
     this.readOnly = readOnly;
+    this.propagation = propagation;
   }
 
   public void beforeStart() {
+    boolean bound = ManagedSessionContext.hasBind(sessionFactory);
+    if (propagation == Propagation.MANDATORY && !bound) {
+      throw new TransactionException("No session bound to the current thread for mandatory propagation");
+    }
+    if (bound && propagation != Propagation.REQUIRES_NEW) {
+      Session current = sessionFactory.getCurrentSession();
+      // A read-only session has no transaction and never flushes, so a write joining it would be lost
+      if (!readOnly && current.isDefaultReadOnly()) {
+        throw new TransactionException("Cannot write in the read-only session bound to the current thread");
+      }
+      session = current;
+      joined = true;
+      return;
+    }
     session = sessionFactory.openSession();
+    suspended = ManagedSessionContext.bind(session);
     try {
       configureSession();
-      ManagedSessionContext.bind(session);
-      beginTransaction();
+      if (readOnly) {
+        markConnectionReadOnly();
+      } else {
+        beginTransaction();
+      }
     } catch (Throwable th) {
       session.close();
       session = null;
-      ManagedSessionContext.unbind(sessionFactory);
+      release();
       throw th;
     }
   }
 
+  /**
+   * Whether this handler reused a session that was already bound to the current thread.
+   *
+   * @return true if the session and transaction are owned by an outer handler
+   */
+  public boolean isJoined() {
+    return joined;
+  }
+
   private void configureSession() {
     session.setDefaultReadOnly(readOnly);
     session.setCacheMode(CacheMode.NORMAL);
-    session.setHibernateFlushMode(FlushMode.AUTO);
+    session.setHibernateFlushMode(readOnly ? FlushMode.MANUAL : FlushMode.AUTO);
+  }
+
+  /**
+   * Read-only work runs without an explicit begin/commit. The pooled connection is switched to auto-commit so
+   * each read is a single round trip with nothing to commit or roll back on release, and is flagged read-only so
+   * the driver can route or optimise it. The pool restores both settings when the connection is returned.
+   */
+  private void markConnectionReadOnly() {
+    session.doWork(connection -> {
+      connection.setAutoCommit(true);
+      connection.setReadOnly(true);
+    });
   }
 
   private void beginTransaction() {
@@ -53,16 +101,22 @@ public class TransactionHandler {
     if (session == null) {
       return;
     }
+    if (joined) {
+      session = null;
+      return;
+    }
 
     try {
-      commitTransaction();
+      if (!readOnly) {
+        commitTransaction();
+      }
     } catch (Exception e) {
       rollbackTransaction();
       throw e;
     } finally {
       session.close();
       session = null;
-      ManagedSessionContext.unbind(sessionFactory);
+      release();
     }
 
   }
@@ -85,6 +139,11 @@ public class TransactionHandler {
     if (session == null) {
       return;
     }
+    if (joined) {
+      // The outer handler sees the same exception and decides whether to roll back
+      session = null;
+      return;
+    }
     try {
       if (!(e instanceof ConstraintViolationException)) {
         rollbackTransaction();
@@ -92,6 +151,15 @@ public class TransactionHandler {
     } finally {
       session.close();
       session = null;
+      release();
+    }
+  }
+
+  private void release() {
+    if (suspended != null) {
+      ManagedSessionContext.bind(suspended);
+      suspended = null;
+    } else {
       ManagedSessionContext.unbind(sessionFactory);
     }
   }
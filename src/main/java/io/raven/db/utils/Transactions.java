@@ -7,6 +7,8 @@ import java.util.function.Function;
 
 /**
  * Utility functional class for running transactions.
+ * Unless a {@link Propagation} is given, calls made while a session is bound to the current thread join that
+ * session and transaction instead of opening a new one.
  */
 public interface Transactions {
 
@@ -19,10 +21,23 @@ public interface Transactions {
     return execute(sessionFactory, readOnly, function, arg, handler, true);
   }
 
+  static <T, U, V> V execute(SessionFactory sessionFactory, boolean readOnly,
+                             Function<U, T> function, U arg, Function<T, V> handler,
+                             Propagation propagation) {
+    return execute(sessionFactory, readOnly, function, arg, handler, true, propagation);
+  }
+
   static <T, U, V> V execute(SessionFactory sessionFactory, boolean readOnly,
                              Function<U, T> function, U arg, Function<T, V> handler,
                              boolean completeTransaction) {
-    TransactionHandler transactionHandler = new TransactionHandler(sessionFactory, readOnly);
+    return execute(sessionFactory, readOnly, function, arg, handler, completeTransaction,
+        Propagation.JOIN_EXISTING);
+  }
+
+  static <T, U, V> V execute(SessionFactory sessionFactory, boolean readOnly,
+                             Function<U, T> function, U arg, Function<T, V> handler,
+                             boolean completeTransaction, Propagation propagation) {
+    TransactionHandler transactionHandler = new TransactionHandler(sessionFactory, readOnly, propagation);
     if (completeTransaction) {
       transactionHandler.beforeStart();
     }
@@ -1,12 +1,18 @@
 package io.raven.db;
 
+import io.raven.db.cache.KeyMembershipFilter;
 import io.raven.db.config.JanusConfig;
+import io.raven.db.config.LookupDaoConfig;
 import io.raven.db.dao.LookupDao;
 import io.raven.db.dao.testdata.entities.TestEntity;
+import org.hibernate.TransactionException;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class JanusTest {
@@ -40,6 +46,72 @@ public class JanusTest {
     assertNotNull(lookupDao);
   }
 
+  @Test
+  public void testInTransaction() {
+    TestEntity saved = dbManager.inTransaction(ctx -> {
+      LookupDao<TestEntity> lookupDao = ctx.dao(TestEntity.class);
+      TestEntity entity = lookupDao.save(TestEntity.builder()
+          .externalId("unitOfWork")
+          .text("Some Text")
+          .build()).get();
+      assertTrue(ctx.getSession().contains(entity));
+      assertSame(entity, lookupDao.lookup("unitOfWork").get());
+      return entity;
+    });
+    String text = dbManager.inReadOnlyTransaction(ctx -> ctx.dao(TestEntity.class).get(saved.getId()).get().getText());
+    assertEquals("Some Text", text);
+  }
+
+  @Test
+  public void testUnitOfWorkSharesDao() {
+    LookupDao<TestEntity> lookupDao = dbManager.createParentObjectDao(TestEntity.class);
+    assertSame(lookupDao, dbManager.inReadOnlyTransaction(ctx -> ctx.dao(TestEntity.class)));
+    assertSame(lookupDao, dbManager.inTransaction(ctx -> ctx.dao(TestEntity.class)));
+  }
+
+  @Test
+  public void testKeyFilterSharedAcrossDaos() throws Exception {
+    LookupDaoConfig filtered = LookupDaoConfig.builder().keyFilterEnabled(true).keyFilterExpectedKeys(1000).build();
+    LookupDao<TestEntity> lookupDao = dbManager.createParentObjectDao(TestEntity.class, filtered);
+    KeyMembershipFilter filter = lookupDao.getKeyFilter().get();
+    assertSame(filter, dbManager.createParentObjectDao(TestEntity.class, filtered).getKeyFilter().get());
+    for (int i = 0; i < 500 && !filter.isBuilt(); i++) {
+      filter.mightContain("");
+      Thread.sleep(10);
+    }
+    assertTrue(filter.isBuilt());
+    // A key saved through the unit of work's DAO, which reads without a filter, still reaches the shared one
+    dbManager.inTransaction(ctx -> ctx.dao(TestEntity.class).save(TestEntity.builder()
+        .externalId("sharedFilter")
+        .text("Some Text")
+        .build()));
+    assertTrue(lookupDao.exists("sharedFilter"));
+  }
+
+  @Test
+  public void testInTransactionRollback() throws Exception {
+    try {
+      dbManager.inTransaction(ctx -> {
+        ctx.dao(TestEntity.class).save(TestEntity.builder()
+            .externalId("rolledBack")
+            .text("Some Text")
+            .build());
+        throw new IllegalStateException("rollback");
+      });
+    } catch (IllegalStateException e) {
+      //Expected
+    }
+    assertFalse(dbManager.createParentObjectDao(TestEntity.class).exists("rolledBack"));
+  }
+
+  @Test(expected = TransactionException.class)
+  public void testWriteInReadOnlyTransaction() {
+    dbManager.inReadOnlyTransaction(ctx -> ctx.dao(TestEntity.class).save(TestEntity.builder()
+        .externalId("readOnlyWrite")
+        .text("Some Text")
+        .build()));
+  }
+
   @Test
   public void testClose() {
     assertTrue(dbManager.close());
@@ -0,0 +1,72 @@
+package io.raven.db.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import io.raven.db.config.JanusConfig;
+import io.raven.db.dao.LookupDao;
+import io.raven.db.dao.testdata.entities.SequencedEntity;
+import io.raven.db.utils.SessionFactoryUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.SessionFactory;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares saving 10k rows through save(List) with and without JDBC batching.
+ * Run with {@code -Djanus.benchmark=true}.
+ */
+@Slf4j
+public class BatchInsertBenchmarkTest {
+
+  private static final int ROWS = 10000;
+
+  @BeforeClass
+  public static void enabled() {
+    Assume.assumeTrue(Boolean.getBoolean("janus.benchmark"));
+  }
+
+  @Test
+  public void benchmarkBatchedSaves() throws Exception {
+    save("warmup", 50, ROWS / 10);
+    long unbatched = save("unbatched", 0, ROWS);
+    long batched = save("batched", 50, ROWS);
+    log.info("Save {} rows: unbatched={}ms batched={}ms", ROWS,
+        TimeUnit.NANOSECONDS.toMillis(unbatched), TimeUnit.NANOSECONDS.toMillis(batched));
+  }
+
+  private long save(String database, int batchSize, int rows) throws Exception {
+    JanusConfig janusConfig = JanusConfig.builder()
+        .createSchema(true)
+        .showSql(false)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database(database)
+        .url("jdbc:h2:mem:" + database)
+        .user("sa")
+        .password("")
+        .batchSize(batchSize)
+        .build();
+    SessionFactoryUtil sessionFactoryUtil = SessionFactoryUtil.getInstance(janusConfig,
+        ImmutableList.<Class<?>>builder().add(SequencedEntity.class).build());
+    try {
+      SessionFactory sessionFactory = sessionFactoryUtil.getSessionFactory();
+      LookupDao<SequencedEntity> lookupDao = new LookupDao<>(sessionFactory, SequencedEntity.class);
+      List<SequencedEntity> entities = new ArrayList<>();
+      for (int i = 0; i < rows; i++) {
+        entities.add(SequencedEntity.builder()
+            .key(database + i)
+            .value("value" + i)
+            .build());
+      }
+      long start = System.nanoTime();
+      lookupDao.save(entities);
+      return System.nanoTime() - start;
+    } finally {
+      sessionFactoryUtil.close();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package io.raven.db.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import io.raven.db.config.JanusConfig;
+import io.raven.db.dao.LookupDao;
+import io.raven.db.dao.Page;
+import io.raven.db.dao.testdata.entities.SequencedEntity;
+import io.raven.db.utils.SessionFactoryUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading a page near the start and near the end of a 1M row table with OFFSET paging and with keyset
+ * paging, and times a full keyset walk of the table.
+ * Run with {@code -Djanus.benchmark=true}.
+ */
+@Slf4j
+public class KeysetPaginationBenchmarkTest {
+
+  private static final int ROWS = 1000000;
+  private static final int PAGE_SIZE = 1000;
+  private static final int ITERATIONS = 20;
+
+  private SessionFactoryUtil sessionFactoryUtil;
+  private LookupDao<SequencedEntity> lookupDao;
+
+  @BeforeClass
+  public static void enabled() {
+    Assume.assumeTrue(Boolean.getBoolean("janus.benchmark"));
+  }
+
+  @Before
+  public void before() {
+    JanusConfig janusConfig = JanusConfig.builder()
+        .createSchema(true)
+        .showSql(false)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .database("keyset")
+        .url("jdbc:h2:mem:keyset")
+        .user("sa")
+        .password("")
+        .build();
+    sessionFactoryUtil = SessionFactoryUtil.getInstance(janusConfig,
+        ImmutableList.<Class<?>>builder().add(SequencedEntity.class).build());
+    lookupDao = new LookupDao<>(sessionFactoryUtil.getSessionFactory(), SequencedEntity.class);
+    List<SequencedEntity> entities = new ArrayList<>(ROWS);
+    for (int i = 0; i < ROWS; i++) {
+      entities.add(SequencedEntity.builder()
+          .key("key" + i)
+          .value("value" + i)
+          .build());
+    }
+    for (List<SequencedEntity> chunk : Lists.partition(entities, 50000)) {
+      lookupDao.bulkInsert(chunk);
+    }
+  }
+
+  @After
+  public void after() {
+    sessionFactoryUtil.close();
+  }
+
+  @Test
+  public void benchmarkDeepPages() throws Exception {
+    DetachedCriteria criteria = DetachedCriteria.forClass(SequencedEntity.class).addOrder(Order.asc("id"));
+    int deep = ROWS - PAGE_SIZE;
+    Long deepCursor = lookupDao.select(criteria, 1, deep - 1).get(0).getId();
+    offset(criteria, 0);
+    keyset(criteria, null);
+    log.info("Page of {} at row 0: offset={}us keyset={}us", PAGE_SIZE, offset(criteria, 0),
+        keyset(criteria, null));
+    log.info("Page of {} at row {}: offset={}us keyset={}us", PAGE_SIZE, deep, offset(criteria, deep),
+        keyset(criteria, deepCursor));
+
+    long start = System.nanoTime();
+    long rows = 0;
+    Long cursor = null;
+    do {
+      Page<SequencedEntity> page = lookupDao.page(criteria, cursor, PAGE_SIZE);
+      rows += page.getItems().size();
+      cursor = page.getNext();
+    } while (cursor != null);
+    log.info("Keyset walk of {} rows: {}ms", rows, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private long offset(DetachedCriteria criteria, int offset) throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      lookupDao.select(criteria, PAGE_SIZE, offset);
+    }
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / ITERATIONS;
+  }
+
+  private long keyset(DetachedCriteria criteria, Long afterId) {
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      lookupDao.page(criteria, afterId, PAGE_SIZE);
+    }
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / ITERATIONS;
+  }
+}
@@ -0,0 +1,81 @@
+package io.raven.db.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import io.raven.db.dao.BaseDaoTest;
+import io.raven.db.dao.LookupDao;
+import io.raven.db.dao.testdata.entities.TestEntity;
+import io.raven.db.utils.Transactions;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares point reads through the read-only fast path against a full begin/commit transaction.
+ * Run with {@code -Djanus.benchmark=true}.
+ */
+@Slf4j
+public class ReadPathBenchmarkTest extends BaseDaoTest {
+
+  private static final int ROWS = 1000;
+  private static final int ITERATIONS = 50000;
+
+  private LookupDao<TestEntity> lookupDao;
+  private final List<Long> ids = new ArrayList<>();
+
+  @BeforeClass
+  public static void enabled() {
+    Assume.assumeTrue(Boolean.getBoolean("janus.benchmark"));
+  }
+
+  @Before
+  public void before() throws Exception {
+    setup(ImmutableList.<Class<?>>builder().add(TestEntity.class).build(), false);
+    lookupDao = new LookupDao<>(sessionFactory, TestEntity.class);
+    for (int i = 0; i < ROWS; i++) {
+      ids.add(lookupDao.save(TestEntity.builder()
+          .externalId("bench-" + i)
+          .text("Some Text " + i)
+          .build()).get().getId());
+    }
+  }
+
+  @Test
+  public void benchmarkPointReads() throws Exception {
+    for (int i = 0; i < ITERATIONS / 10; i++) {
+      readOnly(i);
+      transactional(i);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      transactional(i);
+    }
+    long transactional = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      readOnly(i);
+    }
+    long readOnly = System.nanoTime() - start;
+    log.info("Point reads x{}: transactional={}ms ({}us/op) readOnly={}ms ({}us/op)", ITERATIONS,
+        TimeUnit.NANOSECONDS.toMillis(transactional), TimeUnit.NANOSECONDS.toMicros(transactional) / ITERATIONS,
+        TimeUnit.NANOSECONDS.toMillis(readOnly), TimeUnit.NANOSECONDS.toMicros(readOnly) / ITERATIONS);
+  }
+
+  private void readOnly(int i) {
+    load(true, i);
+  }
+
+  private void transactional(int i) {
+    load(false, i);
+  }
+
+  private void load(boolean readOnly, int i) {
+    Transactions.execute(sessionFactory, readOnly,
+        id -> sessionFactory.getCurrentSession().get(TestEntity.class, id), ids.get(i % ROWS));
+  }
+}
@@ -0,0 +1,122 @@
+package io.raven.db.cache;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import io.raven.db.Janus;
+import io.raven.db.config.CacheConfig;
+import io.raven.db.config.CacheRegionConfig;
+import io.raven.db.config.JanusConfig;
+import io.raven.db.config.LookupDaoConfig;
+import io.raven.db.dao.LookupDao;
+import io.raven.db.dao.testdata.entities.CachedEntity;
+import io.raven.db.dao.testdata.entities.TestEntity;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Restrictions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryRegionFactoryTest {
+
+  private Janus janus;
+
+  @Before
+  public void before() {
+    JanusConfig janusConfig = JanusConfig.builder()
+        .createSchema(true)
+        .showSql(true)
+        .driverClass("org.h2.Driver")
+        .dialect("org.hibernate.dialect.H2Dialect")
+        .user("sa")
+        .password("")
+        .database("db_1")
+        .url("jdbc:h2:mem:db_1")
+        .cacheConfig(CacheConfig.builder()
+            .enabled(true)
+            .queryCache(true)
+            .regions(ImmutableMap.of(CachedEntity.class.getName(), CacheRegionConfig.builder()
+                .maxSize(2)
+                .build()))
+            .build())
+        .build();
+    janus = new Janus(janusConfig, CachedEntity.class, TestEntity.class);
+  }
+
+  @After
+  public void after() {
+    janus.close();
+  }
+
+  @Test
+  public void testCachedGet() throws Exception {
+    LookupDao<CachedEntity> lookupDao = janus.createParentObjectDao(CachedEntity.class);
+    CachedEntity saved = lookupDao.save(CachedEntity.builder()
+        .key("cached")
+        .value("value")
+        .build()).get();
+    assertEquals("value", lookupDao.get(saved.getId()).get().getValue());
+    assertEquals("value", lookupDao.get(saved.getId()).get().getValue());
+    CacheStats stats = janus.getCacheStatistics().get(CachedEntity.class.getName());
+    assertTrue(stats.hitCount() >= 1);
+    assertFalse(janus.getCacheStatistics().containsKey(TestEntity.class.getName()));
+  }
+
+  @Test
+  public void testBoundedRegion() throws Exception {
+    LookupDao<CachedEntity> lookupDao = janus.createParentObjectDao(CachedEntity.class);
+    for (int i = 0; i < 5; i++) {
+      CachedEntity saved = lookupDao.save(CachedEntity.builder()
+          .key("cached" + i)
+          .value("value" + i)
+          .build()).get();
+      lookupDao.get(saved.getId());
+    }
+    CacheStats stats = janus.getCacheStatistics().get(CachedEntity.class.getName());
+    assertTrue(stats.evictionCount() >= 3);
+  }
+
+  @Test
+  public void testQueryCache() throws Exception {
+    LookupDao<CachedEntity> lookupDao = janus.createParentObjectDao(CachedEntity.class,
+        LookupDaoConfig.builder().queryCacheEnabled(true).build());
+    lookupDao.save(CachedEntity.builder()
+        .key("query1")
+        .value("dashboard")
+        .build());
+    DetachedCriteria criteria = DetachedCriteria.forClass(CachedEntity.class)
+        .add(Restrictions.eq("value", "dashboard"));
+    assertEquals(1, lookupDao.select(criteria).size());
+    assertEquals(1, lookupDao.select(criteria).size());
+    assertEquals(1, lookupDao.getQueryCacheStats().get().hitCount());
+
+    // A write to the table invalidates the cached result
+    lookupDao.save(CachedEntity.builder()
+        .key("query2")
+        .value("dashboard")
+        .build());
+    assertEquals(2, lookupDao.select(criteria).size());
+    lookupDao.updateNative("update cached set value = 'other' where key = 'query1'", ImmutableMap.of());
+    assertEquals(1, lookupDao.select(criteria).size());
+    assertEquals(1, lookupDao.getQueryCacheStats().get().hitCount());
+
+    // Native SQL of another DAO may write any table, so by default every cached result is dropped
+    LookupDao<TestEntity> otherDao = janus.createParentObjectDao(TestEntity.class);
+    otherDao.updateNative("update cached set value = 'dashboard' where key = 'query1'", ImmutableMap.of());
+    assertEquals(2, lookupDao.select(criteria).size());
+    assertEquals(1, lookupDao.getQueryCacheStats().get().hitCount());
+
+    // Declared affected tables narrow the invalidation to them
+    otherDao.updateNative("update test_entity set text = 'other' where 1 = 0", ImmutableMap.of(), TestEntity.class);
+    assertEquals(2, lookupDao.select(criteria).size());
+    assertEquals(2, lookupDao.getQueryCacheStats().get().hitCount());
+    lookupDao.updateNative("update cached set value = 'other' where key = 'query1'", ImmutableMap.of(), "cached");
+    assertEquals(1, lookupDao.select(criteria).size());
+    assertEquals(2, lookupDao.getQueryCacheStats().get().hitCount());
+
+    assertFalse(janus.createParentObjectDao(CachedEntity.class).getQueryCacheStats().isPresent());
+  }
+}
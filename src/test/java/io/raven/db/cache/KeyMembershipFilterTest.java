@@ -0,0 +1,51 @@
+package io.raven.db.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyMembershipFilterTest {
+
+  private final List<String> table = new ArrayList<>();
+
+  private final Consumer<Consumer<String>> loader = sink -> new ArrayList<>(table).forEach(sink);
+
+  @Test
+  public void testRebuildKeepsKeysInFlight() {
+    KeyMembershipFilter filter = new KeyMembershipFilter(1000, 0.01, 0, loader, Runnable::run);
+    table.add("committed");
+    filter.mightContain("committed");
+    assertTrue(filter.isBuilt());
+    assertFalse(filter.mightContain("inFlight"));
+
+    // The write starts before the rebuild and commits after its scan
+    filter.put("inFlight");
+    filter.invalidate();
+    filter.mightContain("committed");
+    table.add("inFlight");
+    filter.written("inFlight");
+    assertTrue(filter.isBuilt());
+    assertTrue(filter.mightContain("inFlight"));
+    assertTrue(filter.mightContain("committed"));
+
+    // Once the write has completed a rebuild only relies on the scan
+    filter.invalidate();
+    table.remove("inFlight");
+    filter.mightContain("committed");
+    assertFalse(filter.mightContain("inFlight"));
+  }
+
+  @Test
+  public void testFailedRebuildKeepsNoFilter() {
+    KeyMembershipFilter filter = new KeyMembershipFilter(1000, 0.01, 0, sink -> {
+      throw new IllegalStateException("unavailable");
+    }, Runnable::run);
+    assertTrue(filter.mightContain("any"));
+    assertFalse(filter.isBuilt());
+  }
+}
@@ -32,6 +32,7 @@ public class JanusConfigTest {
     assertEquals(60000, factory.getMaxAge());
     assertEquals("SELECT 1;", factory.getTestQuery());
     assertNull(factory.getPassword());
+    assertFalse(factory.getCacheConfig().isEnabled());
     assertNotNull(factory.toString());
     assertTrue(factory.hashCode() != 0);
   }
@@ -50,6 +51,7 @@ public class JanusConfigTest {
     assertEquals(60000, factory.getMaxAge());
     assertEquals("SELECT 1;", factory.getTestQuery());
     assertNull(factory.getPassword());
+    assertFalse(factory.getCacheConfig().isEnabled());
     assertNotNull(factory.toString());
     assertTrue(factory.hashCode() != 0);
   }
@@ -14,13 +14,17 @@ public class BaseDaoTest {
   private SessionFactoryUtil sessionFactoryUtil;
 
   protected void setup(List<Class<?>> entities) {
+    setup(entities, true);
+  }
+
+  protected void setup(List<Class<?>> entities, boolean showSql) {
     JanusConfig janusConfig = JanusConfig.builder()
         .createSchema(true)
-        .showSql(true)
+        .showSql(showSql)
         .driverClass("org.h2.Driver")
         .dialect("org.hibernate.dialect.H2Dialect")
         .database("db_1")
-        .url("jdbc:h2:mem:db_1")
+        .url("jdbc:h2:mem:db_1;LOCK_TIMEOUT=200")
         .user("sa")
         .password("")
         .build();
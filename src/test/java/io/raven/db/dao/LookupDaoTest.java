@@ -20,25 +20,48 @@ package io.raven.db.dao;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import io.raven.db.cache.KeyMembershipFilter;
+import io.raven.db.config.LookupDaoConfig;
+import io.raven.db.dao.locktest.SomeLookupObject;
+import io.raven.db.dao.locktest.SomeRelatedLookupObject;
+import io.raven.db.dao.testdata.entities.BoxedVersionEntity;
 import io.raven.db.dao.testdata.entities.RelationalEntity;
+import io.raven.db.dao.testdata.entities.SequencedEntity;
 import io.raven.db.dao.testdata.entities.TestEntity;
+import io.raven.db.dao.testdata.entities.VersionedEntity;
+import io.raven.db.utils.Transactions;
+import lombok.Getter;
+import lombok.Value;
 import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.internal.CriteriaImpl;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LookupDaoTest extends BaseDaoTest {
 
@@ -46,13 +69,17 @@ public class LookupDaoTest extends BaseDaoTest {
 
   private LookupDao<RelationalEntity> otherLookupDao;
 
+  private LookupDao<VersionedEntity> versionedLookupDao;
+
   @Before
   public void before() {
     List<Class<?>> entities = ImmutableList.<Class<?>>builder()
-        .add(TestEntity.class, RelationalEntity.class).build();
+        .add(TestEntity.class, RelationalEntity.class, VersionedEntity.class, SequencedEntity.class,
+            BoxedVersionEntity.class, SomeLookupObject.class, SomeRelatedLookupObject.class).build();
     setup(entities);
     lookupDao = new LookupDao<>(sessionFactory, TestEntity.class);
     otherLookupDao = new LookupDao<>(sessionFactory, RelationalEntity.class);
+    versionedLookupDao = new LookupDao<>(sessionFactory, VersionedEntity.class);
   }
 
   @Test
@@ -471,6 +498,28 @@ public class LookupDaoTest extends BaseDaoTest {
     assertEquals("updated", fetched.get().getValue());
   }
 
+  @Test
+  public void testNestedSaveRollsBackWithLock() throws Exception {
+    Optional<TestEntity> saved = lookupDao.save(TestEntity.builder()
+        .externalId("getInShard1")
+        .text("Some Text103")
+        .amount(BigDecimal.TEN)
+        .build());
+    assertTrue(saved.isPresent());
+    try {
+      lookupDao.lockAndGetExecutor(saved.get().getId())
+          .save(otherLookupDao, parent -> RelationalEntity.builder()
+              .key("nested")
+              .value("value")
+              .build())
+          .filter(parent -> false)
+          .execute();
+    } catch (IllegalArgumentException e) {
+      //Expected as the predicate fails after the nested save
+    }
+    assertFalse(otherLookupDao.lookup("nested").isPresent());
+  }
+
   @Test
   public void testSaveAllBatch() throws Exception {
     Optional<TestEntity> saved = lookupDao.save(TestEntity.builder()
@@ -552,4 +601,750 @@ public class LookupDaoTest extends BaseDaoTest {
     assertEquals(1, fetched.size());
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testStatelessInsertAndStream() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      entities.add(TestEntity.builder()
+          .externalId("stateless")
+          .text("Some Text " + i)
+          .build());
+    }
+    List<TestEntity> inserted = lookupDao.stateless().insertAll(entities);
+    assertEquals(25, inserted.size());
+    assertTrue(inserted.get(0).getId() > 0);
+    assertTrue(inserted.get(0).getPartitionId() > 0);
+
+    inserted.forEach(entity -> entity.setText("Stateless Update"));
+    assertEquals(25, lookupDao.stateless().updateAll(inserted));
+
+    List<String> texts = new ArrayList<>();
+    DetachedCriteria criteria = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("externalId", "stateless"));
+    lookupDao.stateless().stream(criteria, 10, entity -> texts.add(entity.getText()));
+    assertEquals(25, texts.size());
+    assertEquals(25, lookupDao.select(criteria).size());
+    assertTrue(texts.stream().allMatch("Stateless Update"::equals));
+  }
+
+  @Test
+  public void testClaim() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      lookupDao.save(TestEntity.builder()
+          .externalId("queued" + i)
+          .text("pending")
+          .build());
+    }
+    DetachedCriteria pending = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "pending"));
+    List<TestEntity> claimed = lookupDao.claim(pending, 2)
+        .mutate(batch -> batch.forEach(entity -> entity.setText("done")))
+        .execute();
+    assertEquals(2, claimed.size());
+    // The claim's row limit and lock mode do not stick to the caller's criteria
+    assertEquals(3, lookupDao.get(pending).size());
+    assertEquals(3, lookupDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "pending"))));
+    claimed = lookupDao.claim(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "pending")), 10)
+        .mutate(batch -> batch.forEach(entity -> entity.setText("done")))
+        .execute();
+    assertEquals(3, claimed.size());
+    assertTrue(lookupDao.claim(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "pending")), 10).execute().isEmpty());
+  }
+
+  @Test
+  public void testUpdateOptimistic() throws Exception {
+    VersionedEntity saved = versionedLookupDao.save(VersionedEntity.builder()
+        .key("versioned")
+        .value("initial")
+        .build()).get();
+    assertNotNull(versionedLookupDao.getVersionField());
+    AtomicInteger attempts = new AtomicInteger();
+    boolean updated = versionedLookupDao.updateOptimistic(saved.getId(), entity -> {
+      if (attempts.incrementAndGet() == 1) {
+        CompletableFuture.runAsync(() -> versionedLookupDao.update(saved.getId(), other -> {
+          other.get().setValue("concurrent");
+          return other.get();
+        })).join();
+      }
+      VersionedEntity e = entity.get();
+      e.setValue(e.getValue() + "-optimistic");
+      return e;
+    });
+    assertTrue(updated);
+    assertEquals(2, attempts.get());
+    assertEquals("concurrent-optimistic", versionedLookupDao.get(saved.getId()).get().getValue());
+  }
+
+  @Test(expected = DaoException.class)
+  public void testUpdateOptimisticWithoutVersion() {
+    lookupDao.updateOptimistic(1L, entity -> entity.orElse(null));
+  }
+
+  @Test
+  public void testBatchLockOrderedChunks() throws Exception {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      ids.add(lookupDao.save(TestEntity.builder()
+          .externalId("chunked" + i)
+          .text("Some Text " + i)
+          .build()).get().getId());
+    }
+    List<Long> requested = Lists.newArrayList(ids.get(4), ids.get(1), ids.get(4), ids.get(0), ids.get(3), ids.get(1));
+    LookupDao.BatchLockedContext<TestEntity> context = lookupDao.lockAndGetExecutor(requested)
+        .withLockChunkSize(2)
+        .mutate(batch -> batch.forEach(entity -> entity.setText("locked")));
+    List<TestEntity> locked = context.execute();
+    assertEquals(4, locked.size());
+    for (int i = 1; i < locked.size(); i++) {
+      assertTrue(locked.get(i - 1).getId() < locked.get(i).getId());
+    }
+    assertTrue(context.getLockWaitMillis() >= 0);
+    assertEquals("locked", lookupDao.get(ids.get(3)).get().getText());
+    assertEquals("Some Text 2", lookupDao.get(ids.get(2)).get().getText());
+  }
+
+  @Test
+  public void testKeyCache() throws Exception {
+    LookupDao<TestEntity> cachedDao = new LookupDao<>(sessionFactory, TestEntity.class,
+        LookupDaoConfig.builder().keyCacheEnabled(true).keyCacheMaxSize(10).build());
+    TestEntity saved = cachedDao.save(TestEntity.builder()
+        .externalId("cachedKey")
+        .text("Some Text")
+        .build()).get();
+    assertEquals("Some Text", cachedDao.lookup("cachedKey").get().getText());
+    assertEquals(0, cachedDao.getKeyCacheStats().hitCount());
+    assertTrue(cachedDao.exists("cachedKey"));
+    assertEquals(1, cachedDao.getKeyCacheStats().hitCount());
+
+    assertTrue(cachedDao.update(saved.getId(), entity -> {
+      TestEntity e = entity.get();
+      e.setExternalId("renamedKey");
+      return e;
+    }));
+    assertFalse(cachedDao.lookup("cachedKey").isPresent());
+    assertFalse(cachedDao.exists("cachedKey"));
+    assertEquals(saved.getId(), cachedDao.lookup("renamedKey").get().getId());
+
+    // A mapping made stale behind the DAO's back is detected on load and falls back to the query
+    cachedDao.lookup("renamedKey");
+    lookupDao.update(saved.getId(), entity -> {
+      TestEntity e = entity.get();
+      e.setExternalId("otherKey");
+      return e;
+    });
+    assertFalse(cachedDao.lookup("renamedKey").isPresent());
+    assertTrue(cachedDao.exists("otherKey"));
+    assertEquals(0, lookupDao.getKeyCacheStats().requestCount());
+  }
+
+  @Test
+  public void testKeyFilter() throws Exception {
+    lookupDao.save(TestEntity.builder()
+        .externalId("preExisting")
+        .text("Some Text")
+        .build());
+    LookupDao<TestEntity> filteredDao = new LookupDao<>(sessionFactory, TestEntity.class,
+        LookupDaoConfig.builder().keyFilterEnabled(true).keyFilterExpectedKeys(1000).build());
+    KeyMembershipFilter filter = filteredDao.getKeyFilter().get();
+    assertTrue(filteredDao.exists("preExisting"));
+    awaitBuilt(filter);
+    assertFalse(filteredDao.exists("missing"));
+    assertFalse(filteredDao.lookup("missing").isPresent());
+    assertEquals(2, filter.getAbsent());
+
+    filteredDao.save(TestEntity.builder()
+        .externalId("savedThroughDao")
+        .text("Some Text")
+        .build());
+    assertTrue(filteredDao.exists("savedThroughDao"));
+    filteredDao.saveAndGetExecutor(TestEntity.builder()
+        .externalId("savedInContext")
+        .text("Some Text")
+        .build()).execute();
+    assertTrue(filteredDao.exists("savedInContext"));
+    filteredDao.stateless().insertAll(Lists.newArrayList(TestEntity.builder()
+        .externalId("savedStateless")
+        .text("Some Text")
+        .build()));
+    assertTrue(filteredDao.exists("savedStateless"));
+    assertTrue(filteredDao.lookupAll(Lists.newArrayList("savedStateless")).containsKey("savedStateless"));
+
+    // A query based update drops the filter once, when it commits
+    Transactions.execute(sessionFactory, false, key -> {
+      try {
+        filteredDao.update("update TestEntity set text = 'Updated' where externalId = :key",
+            ImmutableMap.of("key", key));
+      } catch (Exception e) {
+        throw new DaoException(e);
+      }
+      assertTrue(filter.isBuilt());
+      return key;
+    }, "savedThroughDao");
+    assertFalse(filter.isBuilt());
+    awaitBuilt(filter);
+
+    // Rows written outside the DAO are only seen once the filter is rebuilt
+    lookupDao.save(TestEntity.builder()
+        .externalId("savedElsewhere")
+        .text("Some Text")
+        .build());
+    filteredDao.invalidateKeys();
+    assertTrue(filteredDao.exists("savedElsewhere"));
+    awaitBuilt(filter);
+    assertTrue(filteredDao.exists("savedElsewhere"));
+    assertTrue(filter.getExpectedFalsePositiveRate() < 0.01);
+  }
+
+  private static void awaitBuilt(KeyMembershipFilter filter) throws InterruptedException {
+    for (int i = 0; i < 500 && !filter.isBuilt(); i++) {
+      filter.mightContain("");
+      Thread.sleep(10);
+    }
+    assertTrue(filter.isBuilt());
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    LookupDao<TestEntity> coalescingDao = new LookupDao<>(sessionFactory, TestEntity.class,
+        LookupDaoConfig.builder().singleFlightEnabled(true).build());
+    TestEntity saved = coalescingDao.save(TestEntity.builder()
+        .externalId("hotKey")
+        .text("Some Text")
+        .build()).get();
+    assertEquals("Some Text", coalescingDao.get(saved.getId(), TestEntity::getText).get());
+    assertEquals(Long.valueOf(saved.getId()), coalescingDao.lookup("hotKey", TestEntity::getId).get());
+    assertFalse(coalescingDao.lookup("coldKey").isPresent());
+    assertEquals(1, coalescingDao.getGetFlights().get().getLoads());
+    assertEquals(2, coalescingDao.getLookupFlights().get().getLoads());
+
+    // Calls inside a bound session read through that session and are not coalesced
+    Transactions.execute(sessionFactory, false, id -> {
+      try {
+        return coalescingDao.get(id).get();
+      } catch (Exception e) {
+        throw new DaoException(e);
+      }
+    }, saved.getId());
+    assertEquals(1, coalescingDao.getGetFlights().get().getLoads());
+  }
+
+  @Test
+  public void testGetAsyncBatches() throws Exception {
+    LookupDao<TestEntity> batchingDao = new LookupDao<>(sessionFactory, TestEntity.class,
+        LookupDaoConfig.builder().batchWindowMillis(200).build());
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      ids.add(batchingDao.save(TestEntity.builder()
+          .externalId("async" + i)
+          .text("Some Text " + i)
+          .build()).get().getId());
+    }
+    List<CompletableFuture<Optional<TestEntity>>> gets = new ArrayList<>();
+    for (Long id : ids) {
+      gets.add(CompletableFuture.supplyAsync(() -> batchingDao.getAsync(id)).join());
+    }
+    CompletableFuture<Optional<TestEntity>> missing = batchingDao.getAsync(1000L);
+    CompletableFuture<Optional<TestEntity>> duplicate = batchingDao.getAsync(ids.get(0));
+    for (int i = 0; i < ids.size(); i++) {
+      assertEquals("Some Text " + i, gets.get(i).get().get().getText());
+    }
+    assertFalse(missing.get().isPresent());
+    assertEquals(ids.get(0).longValue(), duplicate.get().get().getId());
+    assertEquals(1, batchingDao.idBatchLoader().getBatches());
+    assertEquals(6, batchingDao.idBatchLoader().getLoads());
+
+    CompletableFuture<Optional<TestEntity>> first = batchingDao.lookupAsync("async1");
+    CompletableFuture<Optional<TestEntity>> second = batchingDao.lookupAsync("async3");
+    CompletableFuture<Optional<TestEntity>> absent = batchingDao.lookupAsync("asyncMissing");
+    assertEquals(ids.get(1).longValue(), first.get().get().getId());
+    assertEquals(ids.get(3).longValue(), second.get().get().getId());
+    assertFalse(absent.get().isPresent());
+    assertEquals(1, batchingDao.keyBatchLoader().getBatches());
+  }
+
+  @Test
+  public void testSaveDetachedFlushesInBatches() throws Exception {
+    LookupDao<SequencedEntity> sequencedDao = new LookupDao<>(sessionFactory, SequencedEntity.class);
+    List<SequencedEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      entities.add(SequencedEntity.builder()
+          .key("batched" + i)
+          .value("value" + i)
+          .build());
+    }
+    int managed = Transactions.<Integer, List<SequencedEntity>, Integer>execute(sessionFactory, false, batch -> {
+      sequencedDao.saveDetached(batch);
+      return sessionFactory.getCurrentSession().getStatistics().getEntityCount();
+    }, entities, count -> count);
+    assertEquals(0, managed);
+    assertEquals(120, sequencedDao.count(DetachedCriteria.forClass(SequencedEntity.class)));
+    assertEquals("value119", sequencedDao.lookup("batched119").get().getValue());
+
+    // save(List) keeps every entity managed for the work that follows it
+    List<SequencedEntity> kept = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      kept.add(SequencedEntity.builder()
+          .key("kept" + i)
+          .value("value" + i)
+          .build());
+    }
+    String changed = Transactions.<String, List<SequencedEntity>, String>execute(sessionFactory, false, batch -> {
+      try {
+        sequencedDao.save(batch);
+      } catch (Exception e) {
+        throw new DaoException(e);
+      }
+      assertTrue(batch.stream().allMatch(sessionFactory.getCurrentSession()::contains));
+      batch.get(0).setValue("changed");
+      return batch.get(0).getKey();
+    }, kept, key -> key);
+    assertEquals("changed", sequencedDao.lookup(changed).get().getValue());
+  }
+
+  @Test
+  public void testBulkInsert() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      entities.add(TestEntity.builder()
+          .externalId("bulk" + i)
+          .text("Some Text " + i)
+          .amount(BigDecimal.valueOf(i))
+          .build());
+    }
+    List<TestEntity> inserted = lookupDao.bulkInsert(entities);
+    for (int i = 0; i < inserted.size(); i++) {
+      TestEntity saved = lookupDao.get(inserted.get(i).getId()).get();
+      assertEquals("bulk" + i, saved.getExternalId());
+      assertEquals(Calendar.getInstance().get(Calendar.YEAR), saved.getPartitionId());
+      assertEquals(0, BigDecimal.valueOf(i).compareTo(saved.getAmount()));
+    }
+
+    LookupDao<SequencedEntity> sequencedDao = new LookupDao<>(sessionFactory, SequencedEntity.class);
+    List<SequencedEntity> sequenced = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      sequenced.add(SequencedEntity.builder()
+          .key("bulk" + i)
+          .value("value" + i)
+          .build());
+    }
+    sequencedDao.bulkInsert(sequenced);
+    assertEquals(1200, sequencedDao.count(DetachedCriteria.forClass(SequencedEntity.class)));
+    assertEquals("value1199", sequencedDao.get(sequenced.get(1199).getId()).get().getValue());
+  }
+
+  @Test
+  public void testUpsert() throws Exception {
+    LookupDao<SequencedEntity> sequencedDao = new LookupDao<>(sessionFactory, SequencedEntity.class);
+    SequencedEntity existing = sequencedDao.save(SequencedEntity.builder()
+        .key("upsert1")
+        .value("original")
+        .build()).get();
+    List<SequencedEntity> batch = Lists.newArrayList(
+        SequencedEntity.builder().key("upsert1").value("updated").build(),
+        SequencedEntity.builder().key("upsert2").value("inserted").build());
+    sequencedDao.upsertAll(batch);
+    SequencedEntity updated = sequencedDao.lookup("upsert1").get();
+    assertEquals(existing.getId(), updated.getId());
+    assertEquals(existing.getId(), batch.get(0).getId());
+    assertEquals("updated", updated.getValue());
+    SequencedEntity inserted = sequencedDao.lookup("upsert2").get();
+    assertEquals("inserted", inserted.getValue());
+    assertEquals(inserted.getId(), batch.get(1).getId());
+
+    assertEquals(1, versionedLookupDao.upsert(VersionedEntity.builder().key("upsert3").value("first").build()));
+    assertEquals(1, versionedLookupDao.upsert(VersionedEntity.builder().key("upsert3").value("second").build()));
+    VersionedEntity upserted = versionedLookupDao.lookup("upsert3").get();
+    assertEquals("second", upserted.getValue());
+    assertEquals(1, upserted.getVersion());
+    assertEquals(1, versionedLookupDao.count(DetachedCriteria.forClass(VersionedEntity.class)
+        .add(Restrictions.eq("key", "upsert3"))));
+  }
+
+  @Test
+  public void testBulkWriteSeedsBoxedVersion() throws Exception {
+    LookupDao<BoxedVersionEntity> boxedDao = new LookupDao<>(sessionFactory, BoxedVersionEntity.class);
+    boxedDao.bulkInsert(Lists.newArrayList(BoxedVersionEntity.builder().key("boxed1").value("first").build()));
+    assertEquals(Long.valueOf(0), boxedDao.lookup("boxed1").get().getVersion());
+    boxedDao.upsertAll(Lists.newArrayList(
+        BoxedVersionEntity.builder().key("boxed1").value("second").build(),
+        BoxedVersionEntity.builder().key("boxed2").value("first").build()));
+    BoxedVersionEntity upserted = boxedDao.lookup("boxed1").get();
+    assertEquals("second", upserted.getValue());
+    assertEquals(Long.valueOf(1), upserted.getVersion());
+    assertEquals(Long.valueOf(0), boxedDao.lookup("boxed2").get().getVersion());
+  }
+
+  @Test
+  public void testSaveManagedEntityKeepsChanges() throws Exception {
+    TestEntity saved = lookupDao.save(TestEntity.builder()
+        .externalId("managed")
+        .text("Some Text")
+        .build()).get();
+    Transactions.execute(sessionFactory, false, id -> {
+      try {
+        TestEntity managed = lookupDao.get(id).get();
+        managed.setText("Changed Text");
+        return lookupDao.save(managed).get();
+      } catch (Exception e) {
+        throw new DaoException(e);
+      }
+    }, saved.getId());
+    assertEquals("Changed Text", lookupDao.get(saved.getId()).get().getText());
+  }
+
+  @Test
+  public void testDelete() throws Exception {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      ids.add(lookupDao.save(TestEntity.builder()
+          .externalId("delete" + i)
+          .text(i < 5 ? "purge" : "keep")
+          .build()).get().getId());
+    }
+    assertTrue(lookupDao.delete(ids.get(5)));
+    assertFalse(lookupDao.delete(ids.get(5)));
+    assertFalse(lookupDao.get(ids.get(5)).isPresent());
+
+    DeleteResult deleted = lookupDao.delete(Lists.newArrayList(ids.get(6), ids.get(7), ids.get(6)));
+    assertEquals(2, deleted.getRows());
+    assertEquals(1, deleted.getChunks().size());
+
+    assertEquals(1, lookupDao.deleteByKey("delete8"));
+    assertFalse(lookupDao.exists("delete8"));
+
+    DetachedCriteria purge = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "purge"));
+    DeleteResult purged = lookupDao.delete(purge, 2);
+    assertEquals(5, purged.getRows());
+    assertEquals(3, purged.getChunks().size());
+    // The caller's criteria is left without the id projection and still selects entities
+    lookupDao.save(TestEntity.builder().externalId("purgeAgain").text("purge").build());
+    assertEquals("purgeAgain", lookupDao.get(purge).get(0).getExternalId());
+    lookupDao.deleteByKey("purgeAgain");
+    assertEquals(1, lookupDao.count(DetachedCriteria.forClass(TestEntity.class)));
+    assertTrue(lookupDao.exists("delete9"));
+  }
+
+  @Test
+  public void testUpdateFields() throws Exception {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      ids.add(lookupDao.save(TestEntity.builder()
+          .externalId("fields" + i)
+          .text("Some Text")
+          .build()).get().getId());
+    }
+    assertTrue(lookupDao.updateFields(ids.get(0), ImmutableMap.of("text", "Changed", "amount", BigDecimal.TEN)));
+    TestEntity changed = lookupDao.get(ids.get(0)).get();
+    assertEquals("Changed", changed.getText());
+    assertEquals(0, BigDecimal.TEN.compareTo(changed.getAmount()));
+    assertEquals("fields0", changed.getExternalId());
+    assertFalse(lookupDao.updateFields(1000L, ImmutableMap.of("text", "Missing")));
+
+    assertEquals(2, lookupDao.updateFields(ids.subList(1, 3), ImmutableMap.of("text", "Batch")));
+    assertEquals(2, lookupDao.count(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "Batch"))));
+
+    VersionedEntity versioned = versionedLookupDao.save(VersionedEntity.builder()
+        .key("fieldsVersioned")
+        .value("original")
+        .build()).get();
+    versionedLookupDao.updateFields(versioned.getId(), ImmutableMap.of("value", "changed"));
+    VersionedEntity reloaded = versionedLookupDao.get(versioned.getId()).get();
+    assertEquals("changed", reloaded.getValue());
+    assertEquals(versioned.getVersion() + 1, reloaded.getVersion());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUpdateFieldsUnknownProperty() {
+    lookupDao.updateFields(1L, ImmutableMap.of("unknown", "value"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUpdateFieldsId() {
+    lookupDao.updateFields(1L, ImmutableMap.of("id", 2L));
+  }
+
+  @Test
+  public void testIncrement() throws Exception {
+    TestEntity saved = lookupDao.save(TestEntity.builder()
+        .externalId("counter")
+        .text("Some Text")
+        .amount(BigDecimal.TEN)
+        .build()).get();
+    Optional<BigDecimal> incremented = lookupDao.increment(saved.getId(), "amount", BigDecimal.ONE);
+    assertEquals(0, BigDecimal.valueOf(11).compareTo(incremented.get()));
+    Optional<BigDecimal> decremented = lookupDao.increment(saved.getId(), "amount", BigDecimal.valueOf(-11),
+        BigDecimal.ZERO);
+    assertEquals(0, BigDecimal.ZERO.compareTo(decremented.get()));
+    assertFalse(lookupDao.increment(saved.getId(), "amount", BigDecimal.valueOf(-1), BigDecimal.ZERO).isPresent());
+    assertEquals(0, BigDecimal.ZERO.compareTo(lookupDao.get(saved.getId()).get().getAmount()));
+    assertFalse(lookupDao.increment(1000L, "amount", BigDecimal.ONE).isPresent());
+
+    TestEntity other = lookupDao.save(TestEntity.builder()
+        .externalId("counter2")
+        .text("Some Text")
+        .amount(BigDecimal.ONE)
+        .build()).get();
+    assertEquals(2, lookupDao.increment(Lists.newArrayList(saved.getId(), other.getId()), "amount", 5));
+    assertEquals(0, BigDecimal.valueOf(6).compareTo(lookupDao.get(other.getId()).get().getAmount()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncrementNonNumeric() {
+    lookupDao.increment(1L, "text", 1);
+  }
+
+  @Test
+  public void testStream() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      lookupDao.save(TestEntity.builder()
+          .externalId("streamed" + i)
+          .text("Streamed")
+          .build());
+    }
+    DetachedCriteria criteria = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "Streamed"))
+        .addOrder(Order.asc("id"));
+    try (Stream<TestEntity> stream = lookupDao.stream(criteria, 10)) {
+      List<String> keys = stream.map(TestEntity::getExternalId).collect(Collectors.toList());
+      assertEquals(25, keys.size());
+      assertEquals("streamed0", keys.get(0));
+      assertEquals("streamed24", keys.get(24));
+    }
+    // The cursor settings stay on the stream's own copy of the criteria
+    assertNull(((CriteriaImpl) criteria.getExecutableCriteria(null)).getFetchSize());
+
+    List<TestEntity> consumed = new ArrayList<>();
+    lookupDao.stream(criteria, 10, consumed::add);
+    assertEquals(25, consumed.size());
+    consumed.get(0).setText("Changed");
+    assertEquals("Streamed", lookupDao.get(consumed.get(0).getId()).get().getText());
+  }
+
+  @Test
+  public void testPage() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      lookupDao.save(TestEntity.builder()
+          .externalId("paged" + i)
+          .text(i % 5 == 0 ? "Skipped" : "Paged")
+          .build());
+    }
+    DetachedCriteria criteria = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "Paged"))
+        .addOrder(Order.desc("externalId"));
+    List<String> keys = new ArrayList<>();
+    Long cursor = null;
+    int pages = 0;
+    do {
+      Page<TestEntity> page = lookupDao.page(criteria, cursor, 7);
+      page.getItems().forEach(entity -> keys.add(entity.getExternalId()));
+      cursor = page.getNext();
+      pages++;
+    } while (cursor != null);
+    assertEquals(3, pages);
+    assertEquals(20, keys.size());
+    assertEquals("paged1", keys.get(0));
+    assertEquals("paged24", keys.get(19));
+
+    List<TestEntity> keyset = lookupDao.selectPaginated(criteria, t -> t, 4, LookupDao.PagingMode.KEYSET);
+    assertEquals(20, keyset.size());
+    assertEquals(keys, keyset.stream().map(TestEntity::getExternalId).collect(Collectors.toList()));
+    assertEquals(20, lookupDao.selectPaginated(criteria, t -> t, 4).size());
+  }
+
+  @Test
+  public void testParallelScan() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      entities.add(TestEntity.builder()
+          .externalId("scanned" + i)
+          .text(i % 10 == 0 ? "Skipped" : "Scanned")
+          .build());
+    }
+    lookupDao.bulkInsert(entities);
+    Set<String> keys = ConcurrentHashMap.newKeySet();
+    AtomicInteger chunks = new AtomicInteger();
+    ScanProgress progress = lookupDao.parallelScan(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "Scanned"))
+        .addOrder(Order.desc("externalId")), 3, chunk -> {
+          chunks.incrementAndGet();
+          chunk.forEach(entity -> keys.add(entity.getExternalId()));
+        });
+    assertEquals(2250, keys.size());
+    assertEquals(2250, progress.getRows());
+    assertEquals(3, progress.getPartitions());
+    assertEquals(3, progress.getCompleted().size());
+    assertTrue(progress.isDone());
+    assertTrue(chunks.get() >= 3);
+    assertEquals(2250, progress.getCompleted().stream().mapToLong(ScanProgress.Partition::getRows).sum());
+
+    ScanProgress empty = lookupDao.parallelScan(DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "None")), 3, chunk -> fail());
+    assertEquals(0, empty.getRows());
+    assertEquals(0, empty.getPartitions());
+    assertTrue(empty.isDone());
+    assertFalse(new ScanProgress().isDone());
+  }
+
+  @Test
+  public void testParallelScanFailsFast() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      entities.add(TestEntity.builder().externalId("failFast" + i).text("FailFast").build());
+    }
+    lookupDao.bulkInsert(entities);
+    long lastId = lookupDao.lookup("failFast99").get().getId();
+    CountDownLatch blocked = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    long start = System.currentTimeMillis();
+    try {
+      // The first partition blocks until interrupted, the last one fails; the failure must not wait for the first
+      lookupDao.parallelScan(DetachedCriteria.forClass(TestEntity.class)
+          .add(Restrictions.eq("text", "FailFast")), 2, chunk -> {
+            if (chunk.stream().anyMatch(entity -> entity.getId() == lastId)) {
+              throw new IllegalStateException("Failed partition");
+            }
+            try {
+              blocked.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              interrupted.set(true);
+              Thread.currentThread().interrupt();
+            }
+          });
+      fail();
+    } catch (DaoException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    for (int i = 0; i < 100 && !interrupted.get(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(interrupted.get());
+  }
+
+  @Test
+  public void testSelectProjected() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      lookupDao.save(TestEntity.builder()
+          .externalId("projected" + i)
+          .text("Projected")
+          .build());
+    }
+    DetachedCriteria criteria = DetachedCriteria.forClass(TestEntity.class)
+        .add(Restrictions.eq("text", "Projected"))
+        .addOrder(Order.desc("externalId"));
+    List<KeyView> views = lookupDao.selectProjected(criteria, KeyView.class, "id", "externalId");
+    assertEquals(5, views.size());
+    assertEquals("projected4", views.get(0).getExternalId());
+    assertTrue(views.get(0).getId() > 0);
+    assertEquals(5, lookupDao.select(criteria).size());
+
+    List<KeyView> hqlViews = lookupDao.selectProjected("select e.id, e.externalId from TestEntity e"
+            + " where e.text = :text order by e.externalId", ImmutableMap.of("text", "Projected"), KeyView.class);
+    assertEquals(5, hqlViews.size());
+    assertEquals("projected0", hqlViews.get(0).getExternalId());
+  }
+
+  @Test
+  public void testSelectProjectedAliasProperty() throws Exception {
+    LookupDao<SomeRelatedLookupObject> relatedDao = new LookupDao<>(sessionFactory, SomeRelatedLookupObject.class);
+    LookupDao<SomeLookupObject> childDao = new LookupDao<>(sessionFactory, SomeLookupObject.class);
+    SomeRelatedLookupObject related = relatedDao.save(SomeRelatedLookupObject.builder()
+        .myId("related")
+        .name("Related")
+        .build()).get();
+    SomeLookupObject child = SomeLookupObject.builder()
+        .myId("child")
+        .name("Child")
+        .build();
+    child.setObject(related);
+    childDao.save(child);
+    List<NamePair> pairs = childDao.selectProjected(DetachedCriteria.forClass(SomeLookupObject.class)
+        .createAlias("object", "o"), NamePair.class, "name", "o.name");
+    assertEquals(1, pairs.size());
+    assertEquals("Child", pairs.get(0).getName());
+    assertEquals("Related", pairs.get(0).getRelatedName());
+  }
+
+  @Test
+  public void testSelectProjectedNullFirstRow() throws Exception {
+    lookupDao.save(TestEntity.builder().externalId("amount0").text("Amount").build());
+    lookupDao.save(TestEntity.builder().externalId("amount1").text("Amount").amount(BigDecimal.ONE).build());
+    // A null amount in the first row must not pick the String overload
+    List<AmountView> views = lookupDao.selectProjected("select e.externalId, e.amount from TestEntity e"
+        + " where e.text = :text order by e.externalId", ImmutableMap.of("text", "Amount"), AmountView.class);
+    assertEquals(2, views.size());
+    assertNull(views.get(0).getAmount());
+    assertEquals(0, BigDecimal.ONE.compareTo(views.get(1).getAmount()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSelectProjectedUnknownProperty() {
+    lookupDao.selectProjected(DetachedCriteria.forClass(TestEntity.class), KeyView.class, "id", "missing");
+  }
+
+  @Test
+  public void testLookupAll() throws Exception {
+    List<TestEntity> entities = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      entities.add(TestEntity.builder()
+          .externalId("many" + i)
+          .text("Many")
+          .build());
+      keys.add("many" + i);
+    }
+    lookupDao.bulkInsert(entities);
+    keys.add("missing");
+    keys.add("many0");
+
+    Map<String, TestEntity> found = lookupDao.lookupAll(keys);
+    assertEquals(2500, found.size());
+    assertEquals("many42", found.get("many42").getExternalId());
+    assertFalse(found.containsKey("missing"));
+    assertEquals(found.keySet(), lookupDao.lookupAll(keys, true).keySet());
+
+    Set<String> existing = lookupDao.existsAll(keys, true);
+    assertEquals(found.keySet(), existing);
+    assertEquals(existing, lookupDao.existsAll(keys));
+    assertTrue(lookupDao.lookupAll(Collections.emptyList()).isEmpty());
+  }
+
+  @Value
+  public static class NamePair {
+
+    String name;
+
+    String relatedName;
+  }
+
+  @Getter
+  public static class AmountView {
+
+    private final String externalId;
+
+    private final BigDecimal amount;
+
+    public AmountView(String externalId, String amount) {
+      this(externalId, new BigDecimal(amount));
+    }
+
+    public AmountView(String externalId, BigDecimal amount) {
+      this.externalId = externalId;
+      this.amount = amount;
+    }
+  }
+
+  @Value
+  public static class KeyView {
+
+    long id;
+
+    String externalId;
+  }
+
+}
@@ -19,14 +19,21 @@ package io.raven.db.dao.locktest;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import io.raven.db.dao.BaseDaoTest;
 import io.raven.db.dao.LookupDao;
+import io.raven.db.utils.RetryPolicy;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Test locking behavior
@@ -78,6 +85,37 @@ public class LockTest extends BaseDaoTest {
     Assert.assertEquals(p1.getMyId(), saved.getMyId());
     Assert.assertEquals("Parent 1", saved.getName());
   }
+
+  @Test
+  public void testLockRetry() throws Exception {
+    SomeLookupObject p1 = SomeLookupObject.builder()
+        .myId("0")
+        .name("Parent 1")
+        .build();
+    long id = lookupDao.save(p1).get().getId();
+    CountDownLatch locked = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<SomeLookupObject> holder = executor.submit(() -> lookupDao.lockAndGetExecutor(id)
+        .mutate(parent -> {
+          locked.countDown();
+          parent.setName("Holder");
+          Uninterruptibles.sleepUninterruptibly(1500, TimeUnit.MILLISECONDS);
+        })
+        .execute());
+    locked.await();
+    lookupDao.lockAndGetExecutor(id)
+        .withRetry(RetryPolicy.builder()
+            .maxAttempts(10)
+            .initialBackoffMillis(50)
+            .deadlineMillis(30000)
+            .build())
+        .mutate(parent -> parent.setName("Retried"))
+        .execute();
+    holder.get();
+    executor.shutdown();
+    Assert.assertEquals("Retried", lookupDao.get(id).get().getName());
+    Assert.assertTrue(lookupDao.getLockRetryMetrics().getRetries() > 0);
+  }
 //
 //
 //  @Test
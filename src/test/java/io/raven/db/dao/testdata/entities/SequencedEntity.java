@@ -0,0 +1,37 @@
+package io.raven.db.dao.testdata.entities;
+
+import io.raven.db.annotations.LookupKey;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@Table(name = "sequenced")
+public class SequencedEntity {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sequenced_seq")
+  @SequenceGenerator(name = "sequenced_seq", sequenceName = "sequenced_seq", allocationSize = 50)
+  private long id;
+
+  @LookupKey
+  @Column(name = "key", nullable = false, unique = true)
+  private String key;
+
+  @Column(name = "value")
+  private String value;
+
+}
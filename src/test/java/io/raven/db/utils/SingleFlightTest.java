@@ -0,0 +1,63 @@
+package io.raven.db.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+  @Test
+  public void testConcurrentCallsShareLoad() throws Exception {
+    SingleFlight<String, String> flights = new SingleFlight<>();
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> flights.execute("hot", () -> {
+      loads.incrementAndGet();
+      started.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "value";
+    }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    List<CompletableFuture<String>> waiters = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      waiters.add(CompletableFuture.supplyAsync(() -> flights.execute("hot", () -> {
+        loads.incrementAndGet();
+        return "duplicate";
+      })));
+    }
+    while (flights.getCoalesced() < 4) {
+      Thread.sleep(5);
+    }
+    release.countDown();
+    assertEquals("value", first.get());
+    for (CompletableFuture<String> waiter : waiters) {
+      assertEquals("value", waiter.get());
+    }
+    assertEquals(1, loads.get());
+    assertEquals(1, flights.getLoads());
+
+    // Nothing is retained once the load completes
+    assertEquals("fresh", flights.execute("hot", () -> "fresh"));
+    assertEquals(2, flights.getLoads());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testFailureIsRethrown() {
+    new SingleFlight<String, String>().execute("key", () -> {
+      throw new IllegalStateException("failed");
+    });
+  }
+}
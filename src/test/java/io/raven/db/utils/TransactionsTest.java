@@ -0,0 +1,58 @@
+package io.raven.db.utils;
+
+import com.google.common.collect.ImmutableList;
+import io.raven.db.dao.BaseDaoTest;
+import io.raven.db.dao.testdata.entities.TestEntity;
+import org.hibernate.Session;
+import org.hibernate.TransactionException;
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TransactionsTest extends BaseDaoTest {
+
+  @Before
+  public void before() {
+    setup(ImmutableList.<Class<?>>builder().add(TestEntity.class).build());
+  }
+
+  @Test
+  public void testJoinExisting() {
+    Transactions.<Session, Void, Void>execute(sessionFactory, false, arg -> {
+      Session outer = sessionFactory.getCurrentSession();
+      Session inner = Transactions.execute(sessionFactory, true, x -> sessionFactory.getCurrentSession(), null);
+      assertSame(outer, inner);
+      assertSame(outer, sessionFactory.getCurrentSession());
+      return outer;
+    }, null, t -> null, Propagation.JOIN_EXISTING);
+    assertFalse(ManagedSessionContext.hasBind(sessionFactory));
+  }
+
+  @Test
+  public void testRequiresNew() {
+    Transactions.<Session, Void, Void>execute(sessionFactory, false, arg -> {
+      Session outer = sessionFactory.getCurrentSession();
+      Session inner = Transactions.execute(sessionFactory, false, x -> sessionFactory.getCurrentSession(), null,
+          t -> t, Propagation.REQUIRES_NEW);
+      assertNotSame(outer, inner);
+      assertSame(outer, sessionFactory.getCurrentSession());
+      return outer;
+    }, null, t -> null);
+    assertFalse(ManagedSessionContext.hasBind(sessionFactory));
+  }
+
+  @Test(expected = TransactionException.class)
+  public void testMandatoryWithoutSession() {
+    Transactions.execute(sessionFactory, false, arg -> arg, "test", t -> t, Propagation.MANDATORY);
+  }
+
+  @Test(expected = TransactionException.class)
+  public void testWriteJoiningReadOnlySession() {
+    Transactions.execute(sessionFactory, true,
+        arg -> Transactions.execute(sessionFactory, false, x -> x, arg), "test");
+  }
+}